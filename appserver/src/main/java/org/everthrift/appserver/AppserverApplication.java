@@ -25,6 +25,7 @@ import org.everthrift.appserver.configs.DistributedSchedulerConfig;
 import org.everthrift.appserver.configs.JGroups;
 import org.everthrift.appserver.configs.JmxConfig;
 import org.everthrift.appserver.configs.LoopbackJGroups;
+import org.everthrift.appserver.configs.NioTcpThrift;
 import org.everthrift.appserver.configs.TcpThrift;
 import org.everthrift.appserver.configs.ZooConfig;
 import org.everthrift.appserver.configs.ZooJmxConfig;
@@ -112,6 +113,10 @@ public class AppserverApplication {
         return !env.getProperty("thrift", "false").equalsIgnoreCase("false");
     }
 
+    private boolean isThriftNioEnabled() {
+        return !env.getProperty("thrift.nio", "false").equalsIgnoreCase("false");
+    }
+
     public static boolean isJGroupsEnabled(@NotNull Environment env) {
         return !env.getProperty("jgroups", "false").equalsIgnoreCase("false");
     }
@@ -232,7 +237,7 @@ public class AppserverApplication {
         context.register(annotatedClasses.toArray(new Class[annotatedClasses.size()]));
 
         if (isThriftEnabled()) {
-            context.register(TcpThrift.class);
+            context.register(isThriftNioEnabled() ? NioTcpThrift.class : TcpThrift.class);
         }
 
         if (isJGroupsEnabled()) {
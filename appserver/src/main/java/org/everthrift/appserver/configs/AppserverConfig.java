@@ -7,6 +7,7 @@ import org.apache.curator.framework.CuratorFramework;
 import org.everthrift.appserver.BeanDefinitionHolder;
 import org.everthrift.appserver.controller.ThriftControllerJmx;
 import org.everthrift.appserver.model.LocalEventBus;
+import org.everthrift.appserver.model.ModelCacheJmx;
 import org.everthrift.clustering.thrift.ThriftControllerDiscovery;
 import org.everthrift.thrift.MetaDataMapBuilder;
 import org.everthrift.thrift.ThriftServicesDiscovery;
@@ -150,6 +151,12 @@ public class AppserverConfig implements SchedulingConfigurer, AsyncConfigurer {
         return new ThriftControllerJmx();
     }
 
+    @NotNull
+    @Bean
+    public ModelCacheJmx ModelCacheJmx() {
+        return new ModelCacheJmx();
+    }
+
     @NotNull
     @Bean
     public TimestampGenerator timestampGenerator() {
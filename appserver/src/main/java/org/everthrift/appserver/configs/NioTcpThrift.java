@@ -0,0 +1,31 @@
+package org.everthrift.appserver.configs;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.everthrift.appserver.controller.ThriftProcessor;
+import org.everthrift.appserver.transport.tcp.NioThriftServer;
+import org.everthrift.appserver.transport.tcp.RpcSyncTcp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Замена {@link TcpThrift} на неблокирующий транспорт
+ */
+@Configuration
+public class NioTcpThrift {
+
+    private static final Logger log = LoggerFactory.getLogger(NioTcpThrift.class);
+
+    @Bean
+    public ThriftProcessor tcpThriftProcessor() {
+        return new ThriftProcessor(RpcSyncTcp.class);
+    }
+
+    @Bean
+    public NioThriftServer NioThriftServer(@Qualifier("tcpThriftProcessor") ThriftProcessor thriftProcessor) {
+        log.info("Starting bean: NioThriftServer");
+        return new NioThriftServer(new TBinaryProtocol.Factory(), thriftProcessor);
+    }
+}
@@ -5,7 +5,9 @@ import org.apache.thrift.TApplicationException;
 import org.apache.thrift.TBase;
 import org.apache.thrift.TException;
 import org.everthrift.appserver.model.lazy.LazyLoadManager;
+import org.everthrift.appserver.transport.tcp.TcpConnectionContext;
 import org.everthrift.appserver.utils.thrift.ThriftClient;
+import org.everthrift.clustering.Deadline;
 import org.everthrift.clustering.MessageWrapper;
 import org.everthrift.thrift.TFunction;
 import org.everthrift.thrift.ThriftServicesDiscovery;
@@ -24,6 +26,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
@@ -60,6 +64,11 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
 
     protected ThriftServicesDiscovery.ThriftMethodEntry thriftMethodEntry;
 
+    private ExecutionStats executionStats;
+
+    @Nullable
+    private AdmissionControl.Permit permit;
+
     @NotNull
     protected LazyLoadManager lazyLoadManager = new LazyLoadManager();
 
@@ -94,6 +103,23 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
                       Executor executor,
                       ThriftServicesDiscovery.ThriftMethodEntry thriftMethodEntry) {
 
+        setup(args, tps, logEntry, seqId, thriftClient, registryAnn, allowAsyncAnswer, serviceName, methodName, executor,
+              thriftMethodEntry, getExecutionStats(this.getClass().getSimpleName()));
+    }
+
+    public void setup(ArgsType args,
+                      ThriftProtocolSupportIF tps,
+                      LogEntry logEntry,
+                      int seqId,
+                      ThriftClient thriftClient,
+                      Class<? extends Annotation> registryAnn,
+                      boolean allowAsyncAnswer,
+                      String serviceName,
+                      String methodName,
+                      Executor executor,
+                      ThriftServicesDiscovery.ThriftMethodEntry thriftMethodEntry,
+                      ExecutionStats executionStats) {
+
         this.args = args;
         this.logEntry = logEntry;
         this.seqId = seqId;
@@ -106,16 +132,26 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
         this.methodName = methodName;
         this.executor = executor;
         this.thriftMethodEntry = thriftMethodEntry;
-
-        rpcControllesStats.putIfAbsent(this.getClass().getSimpleName(), new ExecutionStats());
+        this.executionStats = executionStats;
     }
 
     @Nullable
     protected abstract ResultType handle() throws TException;
 
+    /**
+     * Асинхронный вариант handle(). Незавершенный future означает асинхронный ответ: результат будет
+     * отправлен через {@link ThriftProtocolSupportIF#serializeReplyAsync}, без выброса {@link AsyncAnswer}
+     *
+     * @return future результата, может быть завершен исключением TException
+     */
+    @NotNull
+    protected CompletionStage<ResultType> handleAsync() throws TException {
+        return CompletableFuture.completedFuture(handle());
+    }
+
     /**
      * @param args
-     * @return TApplicationException || TException || ResultType
+     * @return TApplicationException || TException || ResultType || {@link AsyncAnswer#INSTANCE}
      */
     protected final Object handle(ArgsType args) {
 
@@ -125,7 +161,8 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
 
         try {
             setup(args);
-            final CompletableFuture<ResultType> resultFuture = loadLazyRelations(handle());
+            final CompletableFuture<ResultType> resultFuture = handleAsync().toCompletableFuture()
+                                                                            .thenCompose(this::loadLazyRelations);
 
             if (resultFuture.isDone() || !allowAsyncAnswer) {
                 ResultType result;
@@ -134,18 +171,24 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
                 } catch (@NotNull InterruptedException | ExecutionException e) {
                     setResultSentFlag();
                     setEndNanos(System.nanoTime());
-                    log.error("Uncought exception", e);
-                    return e;
+                    final Throwable t = unwrap(e);
+                    if (!(t instanceof TException)) {
+                        log.error("Uncought exception", t);
+                    }
+                    return t;
                 }
                 setResultSentFlag();
                 setEndNanos(System.nanoTime());
                 return result;
             } else {
-                resultFuture.whenCompleteAsync((_answer, t) -> {
-                    if (t != null) {
+                resultFuture.whenCompleteAsync((_answer, _t) -> {
+                    if (_t != null) {
                         setResultSentFlag();
                         setEndNanos(System.nanoTime());
-                        log.error("Uncought exception", t);
+                        final Throwable t = unwrap(_t);
+                        if (!(t instanceof TException)) {
+                            log.error("Uncought exception", t);
+                        }
                         sendAnswerOrException(t);
                     } else {
                         final ResultType result = filterOutput(_answer);
@@ -155,16 +198,29 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
                     }
                 }, executor);
 
-                return waitForAnswer();
+                return AsyncAnswer.INSTANCE;
             }
+        } catch (AsyncAnswer e) {
+            return AsyncAnswer.INSTANCE;
         } catch (TException e) {
             return e;
         }
     }
 
+    private static Throwable unwrap(@NotNull Throwable t) {
+        while ((t instanceof ExecutionException || t instanceof CompletionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    /**
+     * Устаревший способ сигнализировать асинхронный ответ из handle(). Предпочтительно переопределять
+     * {@link #handleAsync()}
+     */
     @NotNull
     protected ResultType waitForAnswer() {
-        throw new AsyncAnswer();
+        throw AsyncAnswer.INSTANCE;
     }
 
     private static class ExUtil {
@@ -230,7 +286,7 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
                 }
             }, executor);
 
-            throw new AsyncAnswer();
+            throw AsyncAnswer.INSTANCE;
         }
     }
 
@@ -272,15 +328,23 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
 
         resultSent = true;
 
-        if (!noProfile) {
-            final ExecutionStats es = rpcControllesStats.get(this.getClass().getSimpleName());
-            if (es != null) {
-                es.update(getExecutionMcs());
-            }
+        if (permit != null) {
+            permit.release();
+        }
+
+        if (!noProfile && executionStats != null) {
+            executionStats.update(getExecutionMcs());
         }
 
     }
 
+    /**
+     * Слот {@link RpcLimit}, освобождается при отправке ответа
+     */
+    void setPermit(@Nullable AdmissionControl.Permit permit) {
+        this.permit = permit;
+    }
+
     public long getEndNanos() {
         return endNanos;
     }
@@ -305,8 +369,19 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
         return 100000;
     }
 
+    /**
+     * Счетчики не удаляются из rpcControllesStats, а обнуляются, т.к. ссылки на них закешированы в
+     * {@link ThriftMethodDispatch}
+     */
     public static void resetExecutionLog() {
-        rpcControllesStats.clear();
+        for (ExecutionStats es : rpcControllesStats.values()) {
+            es.reset();
+        }
+    }
+
+    @NotNull
+    public static ExecutionStats getExecutionStats(@NotNull String name) {
+        return rpcControllesStats.computeIfAbsent(name, _n -> new ExecutionStats());
     }
 
     public static synchronized String getExecutionLog() {
@@ -317,11 +392,10 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
 
         while (it.hasNext()) {
             final Entry<String, ExecutionStats> e = it.next();
-            final ExecutionStats stats;
-            synchronized (e.getValue()) {
-                stats = new ExecutionStats(e.getValue());
+            final ExecutionStats stats = new ExecutionStats(e.getValue());
+            if (stats.getCount() > 0) {
+                list.add(new Pair<String, ExecutionStats>(e.getKey(), stats));
             }
-            list.add(new Pair<String, ExecutionStats>(e.getKey(), stats));
 
         }
 
@@ -356,6 +430,24 @@ public abstract class AbstractThriftController<ArgsType extends TBase, ResultTyp
         return (Map<String, String>) tps.getAttributes().get(MessageWrapper.HTTP_HEADERS);
     }
 
+    /**
+     * @return данные TCP-соединения или null для других транспортов
+     */
+    @Nullable
+    protected TcpConnectionContext getTcpConnection() {
+        final Map<String, Object> attributes = tps.getAttributes();
+        return attributes != null ? (TcpConnectionContext) attributes.get(MessageWrapper.TCP_CONNECTION) : null;
+    }
+
+    /**
+     * Срок запроса, см. {@link Deadline}. ThreadLocal заполнен только на время handle(), поэтому исходящие вызовы
+     * из асинхронных продолжений должны передавать срок явно: Deadline.set(getDeadline()).
+     */
+    @Nullable
+    protected Long getDeadline() {
+        return Deadline.fromAttributes(tps.getAttributes());
+    }
+
     public ThriftServicesDiscovery.ThriftMethodEntry getThriftMethodEntry() {
         return thriftMethodEntry;
     }
@@ -0,0 +1,118 @@
+package org.everthrift.appserver.controller;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Реализация {@link RpcLimit}: семафор на maxConcurrent слотов и ограниченная очередь ожидающих
+ */
+public class AdmissionControl {
+
+    private final String name;
+
+    private final int maxConcurrent;
+
+    private final int maxQueued;
+
+    private final long queueTimeoutMs;
+
+    private final Semaphore slots;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder rejected = new LongAdder();
+
+    public AdmissionControl(String name, int maxConcurrent, int maxQueued, long queueTimeoutMs) {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.slots = new Semaphore(maxConcurrent);
+    }
+
+    public AdmissionControl(String name, @NotNull RpcLimit limit) {
+        this(name, limit.maxConcurrent(), limit.maxQueued(), limit.queueTimeoutMs());
+    }
+
+    /**
+     * Если слотов нет, блокирует вызывающий поток до queueTimeoutMs, см. {@link RpcLimit#queueTimeoutMs()}
+     *
+     * @return слот, который нужно освободить по окончании запроса, или null, если запрос нужно отклонить
+     */
+    @Nullable
+    public Permit tryAcquire() {
+        if (slots.tryAcquire()) {
+            return new Permit();
+        }
+
+        if (queueTimeoutMs <= 0) {
+            rejected.increment();
+            return null;
+        }
+
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.increment();
+            return null;
+        }
+
+        try {
+            if (slots.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return new Permit();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+        }
+
+        rejected.increment();
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getActive() {
+        return maxConcurrent - slots.availablePermits();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionControl{" +
+            "name='" + name + '\'' +
+            ", active=" + getActive() + "/" + maxConcurrent +
+            ", queued=" + getQueued() + "/" + maxQueued +
+            ", rejected=" + getRejected() +
+            '}';
+    }
+
+    public class Permit {
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        /**
+         * Можно вызывать несколько раз, слот освобождается один раз
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                slots.release();
+            }
+        }
+    }
+}
@@ -1,5 +1,16 @@
 package org.everthrift.appserver.controller;
 
+/**
+ * Признак того, что ответ контроллера будет отправлен асинхронно.
+ * <p>
+ * Конвейер {@link AbstractThriftController} возвращает {@link #INSTANCE} как значение, а не бросает его.
+ * Бросать его допускается только из устаревшего waitForAnswer(), поэтому исключение создается без стектрейса.
+ */
 public class AsyncAnswer extends RuntimeException {
 
+    public static final AsyncAnswer INSTANCE = new AsyncAnswer();
+
+    public AsyncAnswer() {
+        super(null, null, false, false);
+    }
 }
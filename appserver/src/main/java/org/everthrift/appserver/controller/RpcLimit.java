@@ -0,0 +1,44 @@
+package org.everthrift.appserver.controller;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Ограничение числа одновременно выполняемых запросов контроллера.
+ * <p>
+ * Проверяется в ThriftProcessor до создания контроллера. Если лимит и очередь исчерпаны, клиент сразу получает
+ * {@link ThriftOverloadException}.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RpcLimit {
+
+    /**
+     * Максимум одновременно выполняемых запросов
+     */
+    int maxConcurrent();
+
+    /**
+     * Сколько запросов может ждать освобождения слота сверх maxConcurrent. Действует только вместе
+     * с queueTimeoutMs &gt; 0
+     */
+    int maxQueued() default 0;
+
+    /**
+     * Сколько ждать освобождения слота, мс. Ожидание идет в потоке, вызвавшем ThriftProcessor.process, то есть
+     * в потоке транспорта (JGroups, Jetty, консьюмеры Rabbit), который на это время не читает другие запросы.
+     * Очередь имеет смысл только для методов, которые вызываются из пула executor'а (например, NIO TCP сервер);
+     * по умолчанию 0 - отклонять сразу.
+     */
+    long queueTimeoutMs() default 0;
+
+    /**
+     * Контроллеры с одинаковой группой делят один лимит (например, все методы сервиса).
+     * По умолчанию лимит свой у каждого метода.
+     */
+    @NotNull String group() default "";
+}
@@ -0,0 +1,60 @@
+package org.everthrift.appserver.controller;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.GenericTypeResolver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Контроллер без состояния: ThriftProcessor получает бин один раз, и этот экземпляр обслуживает все запросы метода.
+ * <p>
+ * В отличие от {@link ThriftController} (prototype-бин на каждый запрос), состояние запроса хранится
+ * в {@link ThriftRequestContext}, который создается обычным new, без участия Spring. Реализация
+ * должна быть потокобезопасной.
+ */
+public abstract class StatelessThriftController<ArgsType extends TBase, ResultType> {
+
+    protected final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Nullable
+    protected abstract ResultType handle(@NotNull ThriftRequestContext<ArgsType, ResultType> ctx) throws TException;
+
+    /**
+     * Асинхронный вариант handle(ctx), см. {@link AbstractThriftController#handleAsync()}
+     */
+    @NotNull
+    protected CompletionStage<ResultType> handleAsync(@NotNull ThriftRequestContext<ArgsType, ResultType> ctx) throws TException {
+        return CompletableFuture.completedFuture(handle(ctx));
+    }
+
+    /**
+     * Вызывается после загрузки lazy-связей и перед отправкой ответа клиенту
+     */
+    protected ResultType filterOutput(@NotNull ThriftRequestContext<ArgsType, ResultType> ctx, ResultType result) {
+        return result;
+    }
+
+    protected boolean loadLazyRelations() {
+        return true;
+    }
+
+    public long getWarnExecutionMcsLimit() {
+        return 100000;
+    }
+
+    @NotNull
+    public ThriftRequestContext<ArgsType, ResultType> newContext() {
+        return new ThriftRequestContext<>(this);
+    }
+
+    public static Class getArgsCls(@NotNull Class<? extends StatelessThriftController> cls) {
+        final Class<?>[] typeArgs = GenericTypeResolver.resolveTypeArguments(cls, StatelessThriftController.class);
+        return typeArgs != null ? typeArgs[0] : null;
+    }
+}
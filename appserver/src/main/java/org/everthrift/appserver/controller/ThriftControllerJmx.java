@@ -1,6 +1,9 @@
 package org.everthrift.appserver.controller;
 
+import org.everthrift.appserver.model.lazy.LazyLoadManager;
+import org.everthrift.utils.ExecutionStats;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jmx.export.annotation.ManagedOperation;
@@ -17,6 +20,19 @@ public class ThriftControllerJmx {
         return AbstractThriftController.getExecutionLog();
     }
 
+    @Nullable
+    @ManagedOperation(description = "getExecutionStats")
+    public String getExecutionStats(String name) {
+        final ExecutionStats stats = AbstractThriftController.rpcControllesStats.get(name);
+        return stats != null ? new ExecutionStats(stats).toString() : null;
+    }
+
+    @NotNull
+    @ManagedOperation(description = "getLazyLoadStats")
+    public String getLazyLoadStats() {
+        return LazyLoadManager.getStatsString();
+    }
+
     @ManagedOperation(description = "logExecutionLog")
     public void logExecutionLog() {
         log.info("\n{}", AbstractThriftController.getExecutionLog());
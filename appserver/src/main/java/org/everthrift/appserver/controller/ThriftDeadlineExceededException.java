@@ -0,0 +1,20 @@
+package org.everthrift.appserver.controller;
+
+import org.apache.thrift.TApplicationException;
+
+/**
+ * Запрос отклонен, потому что его {@link org.everthrift.clustering.Deadline} истек до начала обработки
+ */
+public class ThriftDeadlineExceededException extends TApplicationException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Тип TApplicationException, под которым клиент получает отказ
+     */
+    public static final int DEADLINE_EXCEEDED = 101;
+
+    public ThriftDeadlineExceededException(String message) {
+        super(DEADLINE_EXCEEDED, message);
+    }
+}
@@ -0,0 +1,77 @@
+package org.everthrift.appserver.controller;
+
+import org.apache.thrift.TBase;
+import org.everthrift.thrift.TFunction;
+import org.everthrift.thrift.ThriftServicesDiscovery;
+import org.everthrift.utils.ExecutionStats;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Supplier;
+
+/**
+ * Неизменяемое описание метода для ThriftProcessor: всё, что можно вычислить один раз при старте,
+ * чтобы на каждый запрос приходился один lookup по имени метода
+ */
+@SuppressWarnings("rawtypes")
+public final class ThriftMethodDispatch {
+
+    public final ThriftServicesDiscovery.ThriftMethodEntry thriftMethodEntry;
+
+    public final String beanName;
+
+    public final Class<?> beanClass;
+
+    /**
+     * null, если контроллер для метода не зарегистрирован
+     */
+    @Nullable
+    public final Supplier<ThriftController> controllerFactory;
+
+    @NotNull
+    public final Logger log;
+
+    @NotNull
+    public final ExecutionStats executionStats;
+
+    @NotNull
+    public final TFunction<Object, TBase> makeResult;
+
+    /**
+     * null, если для контроллера не задан {@link RpcLimit}
+     */
+    @Nullable
+    public final AdmissionControl admissionControl;
+
+    public ThriftMethodDispatch(@NotNull ThriftServicesDiscovery.ThriftMethodEntry thriftMethodEntry,
+                                String beanName,
+                                Class<?> beanClass,
+                                @Nullable Supplier<ThriftController> controllerFactory,
+                                @NotNull ExecutionStats executionStats,
+                                @Nullable AdmissionControl admissionControl) {
+        this.thriftMethodEntry = thriftMethodEntry;
+        this.beanName = beanName;
+        this.beanClass = beanClass;
+        this.controllerFactory = controllerFactory;
+        this.log = LoggerFactory.getLogger(beanClass);
+        this.executionStats = executionStats;
+        this.makeResult = thriftMethodEntry::makeResult;
+        this.admissionControl = admissionControl;
+    }
+
+    @NotNull
+    public TBase makeArgs() {
+        return thriftMethodEntry.makeArgs();
+    }
+
+    @Override
+    public String toString() {
+        return "ThriftMethodDispatch{" +
+            "method=" + thriftMethodEntry.getFullMethodName() +
+            ", beanName='" + beanName + '\'' +
+            ", beanClass=" + beanClass +
+            '}';
+    }
+}
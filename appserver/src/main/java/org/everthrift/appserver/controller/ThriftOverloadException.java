@@ -0,0 +1,20 @@
+package org.everthrift.appserver.controller;
+
+import org.apache.thrift.TApplicationException;
+
+/**
+ * Запрос отклонен из-за перегрузки сервера или исчерпания {@link RpcLimit}
+ */
+public class ThriftOverloadException extends TApplicationException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Тип TApplicationException, под которым клиент получает отказ
+     */
+    public static final int OVERLOADED = 100;
+
+    public ThriftOverloadException(String message) {
+        super(OVERLOADED, message);
+    }
+}
@@ -12,19 +12,18 @@ import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.protocol.TProtocolException;
 import org.apache.thrift.protocol.TProtocolUtil;
 import org.apache.thrift.protocol.TType;
-import org.apache.thrift.transport.TFramedTransport;
-import org.apache.thrift.transport.TSocket;
-import org.apache.thrift.transport.TTransport;
 import org.everthrift.appserver.jgroups.RpcJGroups;
 import org.everthrift.appserver.monitoring.RpsServletIF;
 import org.everthrift.appserver.monitoring.RpsServletIF.DsName;
 import org.everthrift.appserver.transport.http.RpcHttp;
 import org.everthrift.appserver.transport.rabbit.RpcRabbit;
 import org.everthrift.appserver.transport.tcp.RpcSyncTcp;
+import org.everthrift.appserver.transport.tcp.TcpConnectionContext;
 import org.everthrift.appserver.transport.websocket.RpcWebsocket;
 import org.everthrift.appserver.utils.thrift.AbstractThriftClient;
 import org.everthrift.appserver.utils.thrift.SessionIF;
 import org.everthrift.appserver.utils.thrift.ThriftClient;
+import org.everthrift.clustering.Deadline;
 import org.everthrift.clustering.MessageWrapper;
 import org.everthrift.clustering.thrift.ThriftControllerDiscovery;
 import org.everthrift.thrift.TFunction;
@@ -38,13 +37,18 @@ import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationContext;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.core.annotation.AnnotationUtils;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 /**
  * На каждый registry по экземпляру ThriftProcessor
@@ -52,7 +56,7 @@ import java.util.concurrent.Executor;
  * @author fluder
  */
 @SuppressWarnings({"rawtypes", "unchecked"})
-public class ThriftProcessor implements TProcessor {
+public class ThriftProcessor implements TProcessor, SmartLifecycle {
 
     final public static Logger log = LoggerFactory.getLogger(ThriftProcessor.class);
 
@@ -78,9 +82,38 @@ public class ThriftProcessor implements TProcessor {
     @Qualifier("listeningCallerRunsBoundQueueExecutor")
     private Executor executor;
 
+    @Nullable
+    private final DsName dsName;
+
+    /**
+     * fullMethodName -> ThriftMethodDispatch, строится в {@link #start()}, после того как
+     * ThriftControllerDiscovery зарегистрирует все контроллеры
+     */
+    private volatile Map<String, ThriftMethodDispatch> dispatchTable = Collections.emptyMap();
+
+    private volatile boolean running = false;
+
+    /**
+     * group -> AdmissionControl, см. {@link RpcLimit#group()}
+     */
+    private final ConcurrentHashMap<String, AdmissionControl> admissionControls = new ConcurrentHashMap<>();
 
     public ThriftProcessor(Class<? extends Annotation> registryAnn) {
         this.registryAnn = registryAnn;
+
+        if (registryAnn == RpcSyncTcp.class) {
+            dsName = DsName.THRIFT_TCP;
+        } else if (registryAnn == RpcHttp.class) {
+            dsName = DsName.THRIFT_HTTP;
+        } else if (registryAnn == RpcJGroups.class) {
+            dsName = DsName.THRIFT_JGROUPS;
+        } else if (registryAnn == RpcRabbit.class) {
+            dsName = DsName.THRIFT_RABBIT;
+        } else if (registryAnn == RpcWebsocket.class) {
+            dsName = DsName.THRIFT_WS;
+        } else {
+            dsName = null;
+        }
     }
 
     public boolean processOnOpen(MessageWrapper in, ThriftClient thriftClient) {
@@ -97,19 +130,79 @@ public class ThriftProcessor implements TProcessor {
 
     private void stat() {
 
-        if (rpsServlet != null) {
-            if (registryAnn == RpcSyncTcp.class) {
-                rpsServlet.incThrift(DsName.THRIFT_TCP);
-            } else if (registryAnn == RpcHttp.class) {
-                rpsServlet.incThrift(DsName.THRIFT_HTTP);
-            } else if (registryAnn == RpcJGroups.class) {
-                rpsServlet.incThrift(DsName.THRIFT_JGROUPS);
-            } else if (registryAnn == RpcRabbit.class) {
-                rpsServlet.incThrift(DsName.THRIFT_RABBIT);
-            } else if (registryAnn == RpcWebsocket.class) {
-                rpsServlet.incThrift(DsName.THRIFT_WS);
-            }
+        if (rpsServlet != null && dsName != null) {
+            rpsServlet.incThrift(dsName);
+        }
+    }
+
+    @NotNull
+    private Map<String, ThriftMethodDispatch> buildDispatchTable() {
+        final Map<String, ThriftMethodDispatch> table = new HashMap<>();
+        for (ThriftServicesDiscovery.ThriftMethodEntry e : thriftServicesDb.getMethodEntries()) {
+            final ThriftMethodDispatch dispatch = makeDispatch(e);
+            table.put(e.getFullMethodName(), dispatch);
+            table.put(e.method.getDeclaringClass().getCanonicalName() + ":" + e.methodName, dispatch);
+        }
+        return table;
+    }
+
+    @NotNull
+    private ThriftMethodDispatch makeDispatch(@NotNull ThriftServicesDiscovery.ThriftMethodEntry thriftMethodEntry) {
+
+        final Class<?> beanClass;
+        final String beanName;
+
+        final ThriftControllerInfo controllerInfo = thriftControllerDiscovery.getLocal(registryAnn.getSimpleName(),
+                                                                                       thriftMethodEntry.getFullMethodName());
+
+        if (controllerInfo != null) {
+            beanClass = controllerInfo.beanClass;
+            beanName = controllerInfo.getBeanName();
+        } else {
+            beanClass = ThriftController.class;
+            beanName = registryAnn.getSimpleName() + "DefaultController";
+        }
+
+        final Supplier<ThriftController> controllerFactory;
+        final Class<?> statsClass;
+
+        if (!applicationContext.containsBean(beanName)) {
+            controllerFactory = null;
+            statsClass = beanClass;
+        } else if (StatelessThriftController.class.isAssignableFrom(beanClass)) {
+            final StatelessThriftController handler = applicationContext.getBean(beanName, StatelessThriftController.class);
+            controllerFactory = handler::newContext;
+            statsClass = beanClass;
+        } else {
+            controllerFactory = () -> (ThriftController) applicationContext.getBean(beanName, beanClass);
+            final Class<?> beanType = applicationContext.getType(beanName);
+            statsClass = beanType != null ? beanType : beanClass;
+        }
+
+        final RpcLimit limit = AnnotationUtils.findAnnotation(beanClass, RpcLimit.class);
+        final AdmissionControl admissionControl;
+        if (limit != null) {
+            final String group = limit.group().isEmpty() ? thriftMethodEntry.getFullMethodName() : limit.group();
+            admissionControl = admissionControls.computeIfAbsent(group, g -> new AdmissionControl(g, limit));
+        } else {
+            admissionControl = null;
+        }
+
+        return new ThriftMethodDispatch(thriftMethodEntry, beanName, beanClass, controllerFactory,
+                                        AbstractThriftController.getExecutionStats(statsClass.getSimpleName()),
+                                        admissionControl);
+    }
+
+    @Nullable
+    private ThriftMethodDispatch getDispatch(String fullMethodName) {
+        final ThriftMethodDispatch dispatch = dispatchTable.get(fullMethodName);
+        if (dispatch != null || running) {
+            return dispatch;
         }
+
+        // Запрос пришел до start(): медленный путь без кеширования
+        final ThriftServicesDiscovery.ThriftMethodEntry thriftMethodEntry = thriftServicesDb.getByMethod(fullMethodName);
+        return thriftMethodEntry == null ? null : makeDispatch(thriftMethodEntry);
     }
 
     @Nullable
@@ -120,13 +213,9 @@ public class ThriftProcessor implements TProcessor {
 
             final TMessage msg = tps.getTMessage();
 
-            final LogEntry logEntry = new LogEntry(msg.name);
-            logEntry.seqId = msg.seqid;
-
+            final ThriftMethodDispatch dispatch = getDispatch(msg.name);
 
-            final ThriftServicesDiscovery.ThriftMethodEntry thriftMethodEntry = thriftServicesDb.getByMethod(msg.name);
-
-            if (thriftMethodEntry == null) {
+            if (dispatch == null || dispatch.controllerFactory == null) {
 
                 tps.skip();
 
@@ -136,30 +225,59 @@ public class ThriftProcessor implements TProcessor {
                                           null);
             }
 
-            final TBase args;
-            try {
-                args = tps.deserializeArgs(thriftMethodEntry.makeArgs());
-            } catch (Exception e) {
-                return tps.serializeReply(e, thriftMethodEntry::makeResult);
+            final Long deadline = Deadline.fromAttributes(tps.getAttributes());
+
+            if (Deadline.isExpired(deadline)) {
+                tps.skip();
+
+                logDeadlineExceeded(thriftClient, msg.name, tps.getSessionId(), deadline);
+                return tps.serializeReply(new ThriftDeadlineExceededException("Deadline exceeded for method " + msg.name),
+                                          null);
             }
 
-            final Class<? extends ThriftController> beanClass;
-            final String beanName;
+            final AdmissionControl.Permit permit;
 
-            final ThriftControllerInfo controllerInfo = thriftControllerDiscovery.getLocal(registryAnn.getSimpleName(), msg.name);
+            if (dispatch.admissionControl != null) {
+                permit = dispatch.admissionControl.tryAcquire();
 
-            if (controllerInfo != null) {
-                beanClass = controllerInfo.beanClass;
-                beanName = controllerInfo.getBeanName();
+                if (permit == null) {
+                    tps.skip();
+
+                    logOverload(thriftClient, msg.name, tps.getSessionId(), dispatch.admissionControl);
+                    return tps.serializeReply(new ThriftOverloadException("Too many concurrent requests for method " + msg.name),
+                                              null);
+                }
             } else {
-                beanClass = ThriftController.class;
-                beanName = registryAnn.getSimpleName() + "DefaultController";
+                permit = null;
+            }
+
+            return invoke(tps, thriftClient, msg, dispatch, permit, deadline);
+        } catch (RuntimeException e) {
+            log.error("Exception while serving thrift request", e);
+            throw e;
+        }
+    }
+
+    @Nullable
+    private <T> T invoke(@NotNull ThriftProtocolSupportIF<T> tps, ThriftClient thriftClient, @NotNull TMessage msg,
+                         @NotNull ThriftMethodDispatch dispatch, @Nullable AdmissionControl.Permit permit,
+                         @Nullable Long deadline) throws TException {
+
+        boolean asyncAnswer = false;
+        try {
+            final ThriftServicesDiscovery.ThriftMethodEntry thriftMethodEntry = dispatch.thriftMethodEntry;
+
+            final TBase args;
+            try {
+                args = tps.deserializeArgs(dispatch.makeArgs());
+            } catch (Exception e) {
+                return tps.serializeReply(e, dispatch.makeResult);
             }
 
             final ThriftController controller;
 
             try {
-                controller = applicationContext.getBean(beanName, beanClass);
+                controller = dispatch.controllerFactory.get();
             } catch (NoSuchBeanDefinitionException e) {
                 logNoController(thriftClient, msg.name, tps.getSessionId());
                 return tps.serializeReply(new TApplicationException(TApplicationException.UNKNOWN_METHOD,
@@ -167,31 +285,48 @@ public class ThriftProcessor implements TProcessor {
                                           null);
             }
 
-            final Logger log = LoggerFactory.getLogger(beanClass);
+            final LogEntry logEntry = new LogEntry(msg.name);
+            logEntry.seqId = msg.seqid;
+
+            final Logger log = dispatch.log;
             logStart(log, thriftClient, msg.name, tps.getSessionId(), args);
 
-            controller.setup(args, tps, logEntry, msg.seqid, thriftClient, registryAnn, tps.allowAsyncAnswer(), thriftMethodEntry.serviceName, thriftMethodEntry.methodName, executor, thriftMethodEntry);
+            controller.setup(args, tps, logEntry, msg.seqid, thriftClient, registryAnn, tps.allowAsyncAnswer(),
+                             thriftMethodEntry.serviceName, thriftMethodEntry.methodName, executor, thriftMethodEntry,
+                             dispatch.executionStats);
+            controller.setPermit(permit);
 
+            // исходящие вызовы из handle() наследуют срок запроса
+            final Long prevDeadline = Deadline.set(deadline);
             try {
                 final Object ret = controller.handle(args);
+                if (ret == AsyncAnswer.INSTANCE) {
+                    asyncAnswer = true;
+                    return null;
+                }
                 try {
-                    return tps.serializeReply(ret, thriftMethodEntry::makeResult);
+                    return tps.serializeReply(ret, dispatch.makeResult);
                 } finally {
                     logEnd(log, controller, msg.name, tps.getSessionId(), ret);
                 }
             } catch (AsyncAnswer e) {
+                asyncAnswer = true;
                 return null;
             } catch (Throwable e) {
                 log.error("Exception while handle thrift request", e);
                 try {
-                    return tps.serializeReply(e, thriftMethodEntry::makeResult);
+                    return tps.serializeReply(e, dispatch.makeResult);
                 } finally {
                     logEnd(log, controller, msg.name, tps.getSessionId(), e);
                 }
+            } finally {
+                Deadline.restore(prevDeadline);
+            }
+        } finally {
+            // при асинхронном ответе слот освобождает контроллер после отправки результата
+            if (permit != null && !asyncAnswer) {
+                permit.release();
             }
-        } catch (RuntimeException e) {
-            log.error("Exception while serving thrift request", e);
-            throw e;
         }
     }
 
@@ -214,9 +349,27 @@ public class ThriftProcessor implements TProcessor {
      */
     @Nullable
     public Object process(@NotNull final TProtocol inp, @NotNull TProtocol out, @Nullable final Map<String, Object> attributes) throws TException {
+        return process(inp, out, attributes, null);
+    }
+
+    /**
+     * @param inp
+     * @param out
+     * @param attributes
+     * @param connection данные TCP-соединения, захваченные при accept
+     * @return Controller result (success or Exception)
+     * @throws TException
+     */
+    @Nullable
+    public Object process(@NotNull final TProtocol inp, @NotNull TProtocol out, @Nullable final Map<String, Object> attributes,
+                          @Nullable final TcpConnectionContext connection) throws TException {
 
         final TMessage msg = inp.readMessageBegin();
 
+        if (connection != null && attributes != null) {
+            attributes.put(MessageWrapper.TCP_CONNECTION, connection);
+        }
+
         final ThriftClient<Object> thriftClient = new AbstractThriftClient<Object>(null) {
 
             private SessionIF session;
@@ -243,20 +396,7 @@ public class ThriftProcessor implements TProcessor {
                     return (String) attributes.get(MessageWrapper.HTTP_X_REAL_IP);
                 }
 
-                TTransport inT = inp.getTransport();
-                if (inT instanceof TFramedTransport) {
-                    try {
-                        Field f = TFramedTransport.class.getDeclaredField("transport_");
-                        f.setAccessible(true);
-                        inT = (TTransport) f.get(inT);
-                        if (inT instanceof TSocket) {
-                            return ((TSocket) inT).getSocket().getRemoteSocketAddress().toString();
-                        }
-                    } catch (@NotNull NoSuchFieldException | SecurityException | IllegalArgumentException | IllegalAccessException e) {
-                        log.warn("cound't get remote address for transport of type {}", inT.getClass().getSimpleName());
-                    }
-                }
-                return null;
+                return connection != null ? connection.clientIp : null;
             }
 
             @Override
@@ -369,6 +509,46 @@ public class ThriftProcessor implements TProcessor {
         return process(s, thriftClient);
     }
 
+    @NotNull
+    public Collection<AdmissionControl> getAdmissionControls() {
+        return admissionControls.values();
+    }
+
+    @Override
+    public synchronized void start() {
+        dispatchTable = buildDispatchTable();
+        running = true;
+        log.info("{}: dispatch table built, {} methods", registryAnn.getSimpleName(), dispatchTable.size());
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    @Override
+    public int getPhase() {
+        return 6; // needs started after thriftControllerDiscovery have discovered all controllers
+    }
+
     private static void logStart(@NotNull Logger l, @Nullable ThriftClient thriftClient, String method, String correlationId, @Nullable Object args) {
         if (l.isDebugEnabled() || logControllerStart.isDebugEnabled()) {
             final Logger _l = l.isDebugEnabled() ? l : logControllerStart;
@@ -396,6 +576,25 @@ public class ThriftProcessor implements TProcessor {
         }
     }
 
+    private static void logDeadlineExceeded(@Nullable ThriftClient thriftClient, String method, String correlationId, long deadline) {
+        if (log.isWarnEnabled() || logControllerStart.isWarnEnabled()) {
+            final Logger _l = log.isWarnEnabled() ? log : logControllerStart;
+            final SessionIF session = thriftClient != null ? thriftClient.getSession() : null;
+            _l.warn("user:{} ip:{} Dropped method:{}, deadline exceeded by {} ms correlationId:{}",
+                    session != null ? session.getCredentials() : null, thriftClient != null ? thriftClient.getClientIp() : null,
+                    method, System.currentTimeMillis() - deadline, correlationId);
+        }
+    }
+
+    private static void logOverload(@Nullable ThriftClient thriftClient, String method, String correlationId, AdmissionControl admissionControl) {
+        if (log.isWarnEnabled() || logControllerStart.isWarnEnabled()) {
+            final Logger _l = log.isWarnEnabled() ? log : logControllerStart;
+            final SessionIF session = thriftClient != null ? thriftClient.getSession() : null;
+            _l.warn("user:{} ip:{} Rejected method:{} {} correlationId:{}", session != null ? session.getCredentials() : null,
+                    thriftClient != null ? thriftClient.getClientIp() : null, method, admissionControl, correlationId);
+        }
+    }
+
     public static void logEnd(@NotNull Logger l, @NotNull AbstractThriftController c, String method, String correlationId, @Nullable Object ret) {
 
         if (l.isDebugEnabled() || logControllerEnd.isDebugEnabled()
@@ -0,0 +1,131 @@
+package org.everthrift.appserver.controller;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.everthrift.appserver.model.lazy.LazyLoadManager;
+import org.everthrift.appserver.transport.tcp.TcpConnectionContext;
+import org.everthrift.appserver.utils.thrift.ThriftClient;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.annotation.Annotation;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Состояние одного запроса к {@link StatelessThriftController}.
+ * <p>
+ * Создается через new на каждый запрос и проходит через обычный конвейер {@link AbstractThriftController}
+ * (lazy load, асинхронный ответ, статистика), но не является Spring-бином.
+ */
+public class ThriftRequestContext<ArgsType extends TBase, ResultType> extends ThriftController<ArgsType, ResultType> {
+
+    @NotNull
+    private final StatelessThriftController<ArgsType, ResultType> handler;
+
+    ThriftRequestContext(@NotNull StatelessThriftController<ArgsType, ResultType> handler) {
+        this.handler = handler;
+        this.loadLazyRelations = handler.loadLazyRelations();
+    }
+
+    @Override
+    public void setup(ArgsType args) {
+    }
+
+    @Nullable
+    @Override
+    protected ResultType handle() throws TException {
+        return handler.handle(this);
+    }
+
+    @NotNull
+    @Override
+    protected CompletionStage<ResultType> handleAsync() throws TException {
+        return handler.handleAsync(this);
+    }
+
+    @Override
+    protected ResultType filterOutput(ResultType result) {
+        return handler.filterOutput(this, result);
+    }
+
+    @Override
+    public long getWarnExecutionMcsLimit() {
+        return handler.getWarnExecutionMcsLimit();
+    }
+
+    @NotNull
+    @Override
+    public String ctrlLog() {
+        return handler.getClass().getSimpleName();
+    }
+
+    @NotNull
+    public StatelessThriftController<ArgsType, ResultType> getHandler() {
+        return handler;
+    }
+
+    public ArgsType getArgs() {
+        return args;
+    }
+
+    public int getSeqId() {
+        return seqId;
+    }
+
+    public ThriftClient getThriftClient() {
+        return thriftClient;
+    }
+
+    @NotNull
+    public LazyLoadManager getLazyLoadManager() {
+        return lazyLoadManager;
+    }
+
+    public Class<? extends Annotation> getRegistryAnn() {
+        return registryAnn;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    @NotNull
+    public Map<String, Object> getAttributes() {
+        return tps.getAttributes();
+    }
+
+    @NotNull
+    @Override
+    public Map<String, String[]> getHttpRequestParams() {
+        return super.getHttpRequestParams();
+    }
+
+    @NotNull
+    @Override
+    public Map<String, String> getHttpHeaders() {
+        return super.getHttpHeaders();
+    }
+
+    @Nullable
+    @Override
+    public TcpConnectionContext getTcpConnection() {
+        return super.getTcpConnection();
+    }
+
+    @Nullable
+    @Override
+    public Long getDeadline() {
+        return super.getDeadline();
+    }
+
+    @Override
+    public ResultType waitForAnswer(@NotNull CompletableFuture<? extends ResultType> lf) throws TException {
+        return super.waitForAnswer(lf);
+    }
+}
@@ -7,6 +7,8 @@ import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.transport.TMemoryBuffer;
+import org.everthrift.appserver.controller.ThriftProcessor;
+import org.everthrift.clustering.Deadline;
 import org.everthrift.clustering.thrift.ThriftControllerDiscovery;
 import org.everthrift.clustering.jgroups.ClusterThriftClientImpl;
 import org.everthrift.thrift.ThriftCallFuture;
@@ -23,6 +25,7 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
@@ -54,7 +57,15 @@ public class LoopbackThriftClientServerImpl extends ClusterThriftClientImpl {
         final TMemoryBuffer out = new TMemoryBuffer(1024);
         final TProtocol outP = binary.getProtocol(out);
 
-        thriftProcessor.process(inP, outP);
+        if (thriftProcessor instanceof ThriftProcessor) {
+            try {
+                ((ThriftProcessor) thriftProcessor).process(inP, outP, Deadline.inherit(attributes != null ? new HashMap<>(attributes)
+                                                                                                          : new HashMap<>()));
+            } catch (RuntimeException e) {
+            }
+        } else {
+            thriftProcessor.process(inP, outP);
+        }
         return CompletableFuture.completedFuture(Collections.singletonMap(new Address() {
 
             @Override
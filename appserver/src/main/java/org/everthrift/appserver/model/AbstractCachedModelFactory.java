@@ -1,21 +1,51 @@
 package org.everthrift.appserver.model;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.everthrift.utils.ClassUtils;
+import org.infinispan.AdvancedCache;
 import org.infinispan.Cache;
 import org.infinispan.configuration.cache.StorageType;
+import org.infinispan.container.entries.CacheEntry;
+import org.infinispan.context.Flag;
 import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryExpired;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.util.CollectionUtils;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 public abstract class AbstractCachedModelFactory<PK, ENTITY, E extends Exception> extends RoModelFactoryImpl<PK, ENTITY, E> {
 
@@ -29,8 +59,130 @@ public abstract class AbstractCachedModelFactory<PK, ENTITY, E extends Exception
     @Nullable
     private Cache<PK, Object> cache;
 
+    /**
+     * Что получает читатель при попадании в кеш
+     */
+    public enum ReadMode {
+        /**
+         * Объект из кеша как есть, изменять его нельзя (copyOnRead = false). Изменяющий код берет копию
+         * через {@link #mutableCopy(Object)} или {@link #findEntityByIdForUpdate(Object)}. Попадание в кеш
+         * не стоит ни одной аллокации.
+         */
+        SHARED,
+        /**
+         * Собственная копия. Для OBJECT storage это ClassUtils.deepCopy, при попадании в BINARY и OFF_HEAP кеш
+         * копирование не нужно: Infinispan каждый раз десериализует новый объект (для TBaseModel - из compact+LZ4).
+         * Загруженные из базы значения копируются всегда, их делят все ждавшие загрузку
+         */
+        COPY
+    }
+
     protected final boolean copyOnRead;
 
+    @NotNull
+    protected final ReadMode readMode;
+
+    /**
+     * true, если cache.get возвращает каждый раз новый объект и копировать его не нужно
+     */
+    private boolean cacheReturnsCopies;
+
+    /**
+     * Загрузки из базы, идущие сейчас на этом узле. Future завершается загруженным значением (NullValue, если
+     * сущности нет), поэтому конкурентные промахи по тому же ключу получают его, даже если в кеш оно не попало.
+     * Фоновое обновление регистрируется здесь только когда начинает выполняться, поэтому промах никогда не ждет
+     * обновлений, стоящих в очереди refreshExecutor.
+     * Инвалидация ключа снимает его загрузку отсюда: она могла прочитать базу до записи, поэтому чтения
+     * после инвалидации к ней не присоединяются и грузят ключ заново.
+     */
+    private final ConcurrentHashMap<PK, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * Ключи, обновление которых стоит в очереди refreshExecutor и еще не началось
+     */
+    private final Set<PK> refreshQueued = ConcurrentHashMap.newKeySet();
+
+    private static final int REFRESH_THREADS = Integer.getInteger("cache.refreshThreads", 4);
+
+    /**
+     * Общий для всех фабрик пул фонового обновления (refresh-ahead), размер задается cache.refreshThreads и
+     * cache.refreshQueue, фабрике можно назначить свой через {@link #setRefreshExecutor(Executor)}. При
+     * переполнении очереди обновление пропускается, запись будет перезагружена при следующем обращении после softTtl.
+     */
+    private static final ThreadPoolExecutor defaultRefreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60L, TimeUnit.SECONDS,
+                                                                                            new ArrayBlockingQueue<>(Integer.getInteger("cache.refreshQueue", 1000)),
+                                                                                            new ThreadFactoryBuilder().setDaemon(true)
+                                                                                                                      .setNameFormat("cache-refresh-%d")
+                                                                                                                      .build());
+
+    static {
+        defaultRefreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Записи старше softTtlMs отдаются из кеша, но перезагружаются в фоне. 0 - refresh-ahead выключен
+     */
+    private long softTtlMs = 0;
+
+    /**
+     * Время жизни записи в кеше, после него чтение ждет загрузки из базы
+     */
+    private long hardTtlMs = 0;
+
+    @NotNull
+    private Executor refreshExecutor = defaultRefreshExecutor;
+
+    /**
+     * Небольшой on-heap уровень перед основным кешем для самых частых ключей, имеет смысл, когда основной кеш
+     * хранит сериализованные значения (OFF_HEAP, см. {@link OffHeapCaches}) и каждое попадание стоит декодирования.
+     */
+    @Nullable
+    private com.google.common.cache.Cache<PK, Object> hotTier;
+
+    @Nullable
+    private InvalidationListener invalidationListener;
+
+    private static final int MAX_INVALIDATION_STAMPS = 65536;
+
+    /**
+     * Счетчик фабрики: загрузка запоминает его до запроса в базу ({@link #loadVersion}), инвалидация ключа
+     * записывает в invalidatedAt следующее значение. Результат загрузки кладется в кеш, только если ключ
+     * не инвалидировался после ее начала, см. {@link #putLoaded}.
+     */
+    private final AtomicLong stamps = new AtomicLong();
+
+    /**
+     * Последняя инвалидация каждого недавно инвалидированного ключа. При переполнении старые записи удаляются,
+     * а invalidationFloor поднимается: загрузки, начатые раньше, считаются устаревшими (один лишний промах).
+     */
+    private final ConcurrentHashMap<PK, Long> invalidatedAt = new ConcurrentHashMap<>();
+
+    private volatile long invalidationFloor = 0;
+
+    @Nullable
+    private volatile ModelCacheStats cacheStats;
+
+    /**
+     * Отправляет накопленные инвалидации всех фабрик. Один поток, поэтому пакеты одной фабрики уходят в кластер
+     * строго по очереди и порядок инвалидаций по каждому ключу сохраняется.
+     */
+    private static final ScheduledExecutorService invalidationScheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cache-invalidate-%d").build());
+
+    /**
+     * Окно накопления инвалидаций, 0 - каждая инвалидация сразу уходит в кластер
+     */
+    private long invalidationWindowMs = 0;
+
+    private final Object invalidationLock = new Object();
+
+    /**
+     * Ключи, ожидающие отправки в кластер, без повторов. Guarded by invalidationLock
+     */
+    @NotNull
+    private Set<PK> pendingInvalidations = new LinkedHashSet<>();
+
+    private boolean invalidationFlushScheduled = false;
 
     public enum InvalidateCause {
         INSERT,
@@ -43,8 +195,13 @@ public abstract class AbstractCachedModelFactory<PK, ENTITY, E extends Exception
      * Конструктор создания фабрики не как Spring-bean
      */
     public AbstractCachedModelFactory(@Nullable Cache cache, boolean copyOnRead) {
+        this(cache, copyOnRead ? ReadMode.COPY : ReadMode.SHARED);
+    }
+
+    public AbstractCachedModelFactory(@Nullable Cache cache, @NotNull ReadMode readMode) {
         super();
-        this.copyOnRead = copyOnRead;
+        this.readMode = readMode;
+        this.copyOnRead = readMode == ReadMode.COPY;
         this.cache = cache;
         _afterPropertiesSet();
     }
@@ -53,6 +210,89 @@ public abstract class AbstractCachedModelFactory<PK, ENTITY, E extends Exception
 
         if (cache == null) {
             log.info("cache is disabled");
+            cacheReturnsCopies = false;
+        } else {
+            cacheReturnsCopies = cache.getAdvancedCache()
+                                      .getCacheConfiguration()
+                                      .memory()
+                                      .storageType() != StorageType.OBJECT;
+
+            if (invalidationListener == null) {
+                invalidationListener = new InvalidationListener();
+                cache.addListener(invalidationListener);
+            }
+        }
+    }
+
+    /**
+     * Отмечает инвалидацию ключа при удалении или инвалидации записи, в том числе пришедших с других узлов.
+     * Изменения записи (в т.ч. загрузки других узлов) загрузки не отменяют. Снимает с hot tier записи,
+     * измененные или удаленные в основном кеше любым путем (в т.ч. прямыми getCache().put/remove в наследниках)
+     */
+    @Listener
+    public class InvalidationListener {
+
+        @CacheEntryRemoved
+        @CacheEntryInvalidated
+        public void onRemove(@NotNull CacheEntryEvent<PK, Object> event) {
+            bumpVersion(event.getKey());
+            invalidateHotTier(event.getKey());
+        }
+
+        @CacheEntryModified
+        public void onModify(@NotNull CacheEntryEvent<PK, Object> event) {
+            invalidateHotTier(event.getKey());
+        }
+
+        @CacheEntryExpired
+        public void onExpire(@NotNull CacheEntryEvent<PK, Object> event) {
+            invalidateHotTier(event.getKey());
+        }
+
+        private void invalidateHotTier(@NotNull PK key) {
+            final com.google.common.cache.Cache<PK, Object> _hotTier = hotTier;
+            if (_hotTier != null) {
+                _hotTier.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * @return версия ключа, которую нужно запомнить до запроса в базу и передать в {@link #putLoaded}
+     */
+    protected final long loadVersion(@NotNull PK id) {
+        return stamps.get();
+    }
+
+    /**
+     * @return true, если id инвалидировался после {@link #loadVersion} == version
+     */
+    protected final boolean invalidatedSince(@NotNull PK id, long version) {
+        final Long at = invalidatedAt.get(id);
+        // floor читается после карты: запись, удаленная при чистке, уже покрыта новым floor
+        return (at != null && at > version) || version < invalidationFloor;
+    }
+
+    private void bumpVersion(@NotNull PK id) {
+        invalidatedAt.merge(id, stamps.incrementAndGet(), Math::max);
+        // уже присоединившиеся получат старое значение, их чтение началось до инвалидации
+        loading.remove(id);
+        if (invalidatedAt.size() > MAX_INVALIDATION_STAMPS) {
+            pruneStamps();
+        }
+    }
+
+    private synchronized void pruneStamps() {
+        if (invalidatedAt.size() <= MAX_INVALIDATION_STAMPS) {
+            return;
+        }
+
+        final long floor = stamps.incrementAndGet();
+        invalidationFloor = floor;
+        for (Map.Entry<PK, Long> e : invalidatedAt.entrySet()) {
+            if (e.getValue() < floor) {
+                invalidatedAt.remove(e.getKey(), e.getValue());
+            }
         }
     }
 
@@ -61,26 +301,168 @@ public abstract class AbstractCachedModelFactory<PK, ENTITY, E extends Exception
         _afterPropertiesSet();
     }
 
+    @PreDestroy
+    private void beforeDestroy() {
+        flushInvalidations();
+    }
+
+    /**
+     * При включенном окне ({@link #setInvalidationWindow(long)}) запись удаляется из кеша этого узла сразу,
+     * а в кластер ключ уходит вместе с остальными инвалидациями окна
+     */
     public void invalidate(@NotNull PK id, @NotNull InvalidateCause invalidateCause) {
+        bumpVersion(id);
+        if (hotTier != null) {
+            hotTier.invalidate(id);
+        }
         if (cache != null) {
             if (log.isTraceEnabled()) {
                 log.trace("invalidate {}/{}", getEntityClass().getSimpleName(), id);
             }
-            cache.remove(id);
+
+            if (invalidationWindowMs > 0) {
+                removeLocal(id);
+                enqueueInvalidations(Collections.singleton(id));
+            } else {
+                removeAll(Collections.singleton(id));
+            }
         }
     }
 
     public void invalidateLocal(@NotNull PK id, @NotNull InvalidateCause invalidateCause) {
+        bumpVersion(id);
+        if (hotTier != null) {
+            hotTier.invalidate(id);
+        }
         if (cache != null) {
             log.debug("invalidateLocal {}/{}", getEntityClass().getSimpleName(), id);
-            cache.remove(id, true);
+            removeLocal(id);
         }
     }
 
     public void invalidate(@NotNull Set<PK> ids, @NotNull InvalidateCause invalidateCause) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        ids.forEach(this::bumpVersion);
+        if (hotTier != null) {
+            hotTier.invalidateAll(ids);
+        }
         if (cache != null) {
-            log.debug("invalidateLocal {}/{}", getEntityClass().getSimpleName(), ids);
-            ids.forEach(cache::remove);
+            log.debug("invalidate {}/{}", getEntityClass().getSimpleName(), ids);
+
+            if (invalidationWindowMs > 0) {
+                ids.forEach(this::removeLocal);
+                enqueueInvalidations(ids);
+            } else {
+                removeAll(ids);
+            }
+        }
+    }
+
+    private void removeLocal(@NotNull PK id) {
+        cache.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL, Flag.IGNORE_RETURN_VALUES).remove(id);
+    }
+
+    /**
+     * Удаляет ключи из кеша во всем кластере. Несколько ключей кластерного кеша уходят одной командой
+     * cluster executor'а, которая удаляет их локально на каждом узле (без транзакций и invocationBatching),
+     * остальное - обычным remove по ключу
+     */
+    private void removeAll(@NotNull Set<PK> ids) {
+        final ModelCacheStats stats = getCacheStats();
+
+        if (ids.size() > 1 && cache.getCacheConfiguration().clustering().cacheMode().isClustered()) {
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            cache.getCacheManager()
+                 .executor()
+                 .submitConsumer(new RemoveLocal<>(cache.getName(), new ArrayList<>(ids)), (address, ignored, t) -> {
+                     if (t != null) {
+                         error.compareAndSet(null, t);
+                     }
+                 })
+                 .join();
+
+            if (error.get() != null) {
+                Throwables.propagateIfPossible(error.get());
+                throw new RuntimeException(error.get());
+            }
+            stats.invalidationBatches.increment();
+        } else {
+            final AdvancedCache<PK, Object> c = cache.getAdvancedCache().withFlags(Flag.IGNORE_RETURN_VALUES);
+            ids.forEach(c::remove);
+        }
+
+        stats.invalidatedKeys.add(ids.size());
+    }
+
+    /**
+     * Команда, удаляющая ключи из кеша cacheName на узле, где выполняется. InvalidationListener фабрики
+     * на узле отмечает инвалидацию и снимает ключи с hot tier, как при invalidateLocal
+     */
+    private static final class RemoveLocal<K> implements Function<EmbeddedCacheManager, Void>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        @NotNull
+        private final String cacheName;
+
+        @NotNull
+        private final ArrayList<K> keys;
+
+        RemoveLocal(@NotNull String cacheName, @NotNull ArrayList<K> keys) {
+            this.cacheName = cacheName;
+            this.keys = keys;
+        }
+
+        @Override
+        public Void apply(@NotNull EmbeddedCacheManager cm) {
+            if (cm.isRunning(cacheName)) {
+                final AdvancedCache<K, Object> c = cm.<K, Object>getCache(cacheName)
+                                                     .getAdvancedCache()
+                                                     .withFlags(Flag.CACHE_MODE_LOCAL, Flag.IGNORE_RETURN_VALUES);
+                keys.forEach(c::remove);
+            }
+            return null;
+        }
+    }
+
+    private void enqueueInvalidations(@NotNull Set<PK> ids) {
+        final boolean schedule;
+        synchronized (invalidationLock) {
+            pendingInvalidations.addAll(ids);
+            schedule = !invalidationFlushScheduled;
+            invalidationFlushScheduled = true;
+        }
+
+        if (schedule) {
+            invalidationScheduler.schedule(this::flushInvalidations, invalidationWindowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Отправить в кластер накопленные инвалидации, не дожидаясь конца окна
+     */
+    public void flushInvalidations() {
+        final Set<PK> batch;
+        synchronized (invalidationLock) {
+            invalidationFlushScheduled = false;
+            if (pendingInvalidations.isEmpty()) {
+                return;
+            }
+            batch = pendingInvalidations;
+            pendingInvalidations = new LinkedHashSet<>();
+        }
+
+        if (cache == null) {
+            return;
+        }
+
+        try {
+            removeAll(batch);
+        } catch (RuntimeException e) {
+            log.error("Couldn't invalidate {} keys of {} in cluster", batch.size(), getEntityClass().getSimpleName(), e);
         }
     }
 
@@ -90,17 +472,36 @@ public abstract class AbstractCachedModelFactory<PK, ENTITY, E extends Exception
     @Nullable
     protected abstract ENTITY fetchEntityById(@NotNull PK id);
 
-    private ENTITY copy(Object value) {
+    /**
+     * Значение, прочитанное из кеша (cache.get/getAll), в виде, который можно отдать читателю, см. {@link ReadMode}
+     */
+    protected final ENTITY copyForRead(Object value) {
+        return (ENTITY) (copyOnRead && !cacheReturnsCopies ? ClassUtils.deepCopy(value) : value);
+    }
 
-        if (cache != null && cache.getAdvancedCache()
-                                  .getCacheConfiguration()
-                                  .memory()
-                                  .storageType() == StorageType.OBJECT && copyOnRead) {
+    /**
+     * Значение, загруженное из базы, в виде, который можно отдать читателю. Копируется в режиме COPY при любом
+     * storage: один загруженный объект получают все, кто ждал эту загрузку, а в OBJECT storage он лежит и в кеше
+     */
+    protected final ENTITY copyLoaded(Object value) {
+        return (ENTITY) (copyOnRead ? ClassUtils.deepCopy(value) : value);
+    }
 
-            return (ENTITY) ClassUtils.deepCopy(value);
-        } else {
-            return (ENTITY) (copyOnRead ? ClassUtils.deepCopy(value) : value);
-        }
+    /**
+     * Копия для изменения. Нужна в режиме SHARED, где читатели получают общий объект из кеша
+     */
+    @Nullable
+    public ENTITY mutableCopy(@Nullable ENTITY e) {
+        return e == null ? null : (ENTITY) ClassUtils.deepCopy(e);
+    }
+
+    /**
+     * findEntityById, результат которого можно менять, не затрагивая кеш
+     */
+    @Nullable
+    public ENTITY findEntityByIdForUpdate(@NotNull PK id) {
+        final ENTITY e = findEntityById(id);
+        return copyOnRead || cache == null ? e : mutableCopy(e);
     }
 
     @Override
@@ -114,17 +515,59 @@ public abstract class AbstractCachedModelFactory<PK, ENTITY, E extends Exception
             return fetchEntityById(id);
         }
 
+        final ModelCacheStats stats = getCacheStats();
+        final long version = loadVersion(id);
+
+        if (hotTier != null) {
+            final Object hot = hotTier.getIfPresent(id);
+            if (hot != null) {
+                stats.hotHits.increment();
+                return hot == NullValue.INSTANCE ? null : (ENTITY) hot;
+            }
+        }
+
+        boolean missed = false;
         Object value;
-        while ((value = cache.get(id)) == null) {
-            final ENTITY fetched = fetchEntityById(id);
-            cache.put(id, fetched == null ? NullValue.INSTANCE : fetched);
+        if (softTtlMs > 0) {
+            final CacheEntry<PK, Object> entry = cache.getAdvancedCache().getCacheEntry(id);
+            if (entry == null) {
+                missed = true;
+                value = load(id);
+            } else {
+                value = entry.getValue();
+                if (isStale(entry)) {
+                    refresh(Collections.singleton(id));
+                }
+            }
+        } else {
+            value = cache.get(id);
+            if (value == null) {
+                missed = true;
+                value = load(id);
+            }
+        }
+
+        if (missed) {
+            stats.misses.increment();
+        } else {
+            stats.hits.increment();
+            if (value == NullValue.INSTANCE) {
+                stats.nullHits.increment();
+            }
+        }
+
+        if (hotTier != null) {
+            hotTier.put(id, value);
+            if (invalidatedSince(id, version)) {
+                hotTier.invalidate(id);
+            }
         }
 
         if (value == NullValue.INSTANCE) {
             return null;
         }
 
-        return copy(value);
+        return missed ? copyLoaded(value) : copyForRead(value);
     }
 
     @NotNull
@@ -143,34 +586,380 @@ public abstract class AbstractCachedModelFactory<PK, ENTITY, E extends Exception
             }
         }
 
-        final Set<PK> toLoad = new HashSet<>(ids.size());
-        toLoad.addAll(ids);
+        final Map<PK, ENTITY> result = new HashMap<>(ids.size() * 4 / 3 + 1);
+        findEntityByIdAsMap(ids, result);
+        return result;
+    }
+
+    /**
+     * То же, что {@link #findEntityByIdAsMap(Set)}, но результат кладется в карту вызывающего, заранее
+     * созданную нужного размера (например, Long2ObjectMap, см. {@link LongCachedIndexModelFactory})
+     */
+    final public void findEntityByIdAsMap(@NotNull Set<PK> ids, @NotNull Map<PK, ENTITY> result) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        if (cache == null) {
+            if (ids.size() == 1) {
+                final PK id = ids.iterator().next();
+                result.put(id, fetchEntityById(id));
+            } else {
+                result.putAll(fetchEntityByIdAsMap(ids));
+            }
+            return;
+        }
+
+        final Set<PK> toLoad = new HashSet<>(ids);
 
-        final Map<PK, ENTITY> result = new HashMap<>();
+        final ModelCacheStats stats = getCacheStats();
 
-        while (!toLoad.isEmpty()) {
-            final Map<PK, Object> cached = cache.getAdvancedCache().getAll(toLoad);
+        if (hotTier != null) {
+            final Map<PK, Object> hot = hotTier.getAllPresent(ids);
+            for (Map.Entry<PK, Object> e : hot.entrySet()) {
+                result.put(e.getKey(), e.getValue() == NullValue.INSTANCE ? null : (ENTITY) e.getValue());
+                toLoad.remove(e.getKey());
+            }
+            stats.hotHits.add(hot.size());
 
+            if (toLoad.isEmpty()) {
+                return;
+            }
+        }
 
-            for (Map.Entry<PK, Object> e : cached.entrySet()) {
-                if (e.getValue() == NullValue.INSTANCE) {
-                    result.put(e.getKey(), null);
-                } else {
-                    result.put(e.getKey(), copy(e.getValue()));
+        final Set<PK> stale = softTtlMs > 0 ? new HashSet<>() : null;
+        final Map<PK, Long> hotVersions = hotTier != null ? loadVersions(toLoad) : null;
+        final Map<PK, Object> cached;
+
+        if (stale != null) {
+            final Map<PK, CacheEntry<PK, Object>> entries = cache.getAdvancedCache().getAllCacheEntries(toLoad);
+            cached = new HashMap<>(entries.size());
+            for (Map.Entry<PK, CacheEntry<PK, Object>> e : entries.entrySet()) {
+                cached.put(e.getKey(), e.getValue().getValue());
+                if (isStale(e.getValue())) {
+                    stale.add(e.getKey());
                 }
-                toLoad.remove(e.getKey());
             }
+        } else {
+            cached = cache.getAdvancedCache().getAll(toLoad);
+        }
+
+        for (PK id : cached.keySet()) {
+            toLoad.remove(id);
+        }
+
+        stats.hits.add(cached.size());
+        stats.misses.add(toLoad.size());
 
-            if (!toLoad.isEmpty()) {
-                final Map<PK, ENTITY> loaded = fetchEntityByIdAsMap(toLoad);
-                for (PK id : toLoad) {
-                    final ENTITY fetched = loaded.get(id);
-                    cache.put(id, fetched == null ? NullValue.INSTANCE : fetched);
+        final Map<PK, Object> values = toLoad.isEmpty() ? cached : new HashMap<>(cached);
+        if (!toLoad.isEmpty()) {
+            values.putAll(load(toLoad));
+        }
+
+        if (hotTier != null) {
+            hotTier.putAll(values);
+            for (PK id : values.keySet()) {
+                if (invalidatedSince(id, hotVersions.get(id))) {
+                    hotTier.invalidate(id);
                 }
             }
         }
 
-        return result;
+        for (Map.Entry<PK, Object> e : values.entrySet()) {
+            if (e.getValue() == NullValue.INSTANCE) {
+                if (cached.containsKey(e.getKey())) {
+                    stats.nullHits.increment();
+                }
+                result.put(e.getKey(), null);
+            } else if (cached.containsKey(e.getKey())) {
+                result.put(e.getKey(), copyForRead(e.getValue()));
+            } else {
+                result.put(e.getKey(), copyLoaded(e.getValue()));
+            }
+        }
+
+        if (stale != null && !stale.isEmpty()) {
+            refresh(stale);
+        }
+    }
+
+    /**
+     * Запись без метаданных (положена без lifespan) считается свежей
+     */
+    private boolean isStale(@NotNull CacheEntry<PK, Object> entry) {
+        final long created = entry.getCreated();
+        return created > 0 && System.currentTimeMillis() - created > softTtlMs;
+    }
+
+    /**
+     * Фоновая перезагрузка ids. Ключи, уже стоящие в очереди обновления, пропускаются. Задача при запуске
+     * регистрирует в loading ключи, которые никто не грузит, и загружает их одним fetchEntityByIdAsMap;
+     * промахи, случившиеся после этого, ждут ее.
+     */
+    private void refresh(@NotNull Set<PK> ids) {
+        final Set<PK> queued = new HashSet<>();
+        for (PK id : ids) {
+            if (!loading.containsKey(id) && refreshQueued.add(id)) {
+                queued.add(id);
+            }
+        }
+
+        if (queued.isEmpty()) {
+            return;
+        }
+
+        try {
+            refreshExecutor.execute(() -> runRefresh(queued));
+        } catch (RejectedExecutionException e) {
+            getCacheStats().refreshRejected.increment();
+            refreshQueued.removeAll(queued);
+        }
+    }
+
+    private void runRefresh(@NotNull Set<PK> queued) {
+        final Map<PK, CompletableFuture<Object>> own = new HashMap<>();
+        for (PK id : queued) {
+            final CompletableFuture<Object> f = new CompletableFuture<>();
+            if (loading.putIfAbsent(id, f) == null) {
+                own.put(id, f);
+            }
+        }
+        refreshQueued.removeAll(queued);
+
+        if (own.isEmpty()) {
+            return;
+        }
+
+        getCacheStats().refreshes.add(own.size());
+
+        try {
+            final Map<PK, Object> loaded = fetchAndPut(own.keySet());
+            own.forEach((id, f) -> f.complete(loaded.get(id)));
+        } catch (RuntimeException | Error e) {
+            log.warn("Couldn't refresh {}/{}", getEntityClass().getSimpleName(), own.keySet(), e);
+            own.values().forEach(f -> f.completeExceptionally(e));
+        } finally {
+            own.forEach(loading::remove);
+        }
+    }
+
+    /**
+     * @return загруженные значения по всем ids, NullValue для отсутствующих сущностей, в том числе не
+     * положенные в кеш из-за инвалидации
+     */
+    @NotNull
+    private Map<PK, Object> fetchAndPut(@NotNull Set<PK> ids) {
+        final ModelCacheStats stats = getCacheStats();
+        final long start = System.nanoTime();
+
+        try {
+            if (ids.size() == 1) {
+                final PK id = ids.iterator().next();
+                final long version = loadVersion(id);
+                final ENTITY loaded = fetchEntityById(id);
+                stats.singleLoads.update((System.nanoTime() - start) / 1000);
+                putLoaded(id, loaded, version);
+                return Collections.singletonMap(id, loaded == null ? NullValue.INSTANCE : loaded);
+            } else {
+                final Map<PK, Long> versions = loadVersions(ids);
+                final Map<PK, ENTITY> loaded = fetchEntityByIdAsMap(ids);
+                stats.batchLoads.update((System.nanoTime() - start) / 1000);
+                stats.batchLoadedKeys.add(ids.size());
+
+                final Map<PK, Object> ret = new HashMap<>(ids.size() * 4 / 3 + 1);
+                for (PK id : ids) {
+                    final ENTITY e = loaded.get(id);
+                    putLoaded(id, e, versions.get(id));
+                    ret.put(id, e == null ? NullValue.INSTANCE : e);
+                }
+                return ret;
+            }
+        } catch (RuntimeException | Error e) {
+            stats.loadErrors.increment();
+            throw e;
+        }
+    }
+
+    @NotNull
+    protected final Map<PK, Long> loadVersions(@NotNull Collection<PK> ids) {
+        final Map<PK, Long> ret = new HashMap<>(ids.size() * 2);
+        for (PK id : ids) {
+            ret.put(id, loadVersion(id));
+        }
+        return ret;
+    }
+
+    /**
+     * Положить в кеш значение, загруженное из базы, если с момента {@link #loadVersion(Object)} ключ не
+     * инвалидировался. Иначе значение могло устареть: в кеш оно не кладется, но вызывающий может вернуть его
+     * своему клиенту, следующее чтение перезагрузит ключ.
+     *
+     * @param fetched значение из базы, null - сущности нет
+     * @return false, если значение не положено в кеш
+     */
+    protected final boolean putLoaded(@NotNull PK id, @Nullable Object fetched, long version) {
+        if (invalidatedSince(id, version)) {
+            getCacheStats().staleLoads.increment();
+            return false;
+        }
+
+        final Object value = fetched == null ? NullValue.INSTANCE : fetched;
+        if (softTtlMs > 0) {
+            cache.getAdvancedCache().withFlags(Flag.IGNORE_RETURN_VALUES).put(id, value, hardTtlMs, TimeUnit.MILLISECONDS);
+        } else {
+            cache.getAdvancedCache().withFlags(Flag.IGNORE_RETURN_VALUES).put(id, value);
+        }
+
+        if (invalidatedSince(id, version)) {
+            // инвалидация пришла между проверкой и put, ее remove мог выполниться раньше нашего put.
+            // Снимаем запись, только если в кеше все еще наше значение, а не пришедшее позже с другого узла
+            final Object current = cache.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL).get(id);
+            if (cacheReturnsCopies ? value.equals(current) : current == value) {
+                cache.remove(id, value);
+            }
+            getCacheStats().staleLoads.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Загрузить id в кеш или дождаться загрузки, уже начатой другим потоком
+     *
+     * @return загруженное значение, NullValue, если сущности нет
+     */
+    @NotNull
+    private Object load(@NotNull PK id) {
+        final CompletableFuture<Object> f = new CompletableFuture<>();
+        final CompletableFuture<Object> running = loading.putIfAbsent(id, f);
+
+        if (running != null) {
+            getCacheStats().coalesced.increment();
+            return await(running);
+        }
+
+        try {
+            final Object value = fetchAndPut(Collections.singleton(id)).get(id);
+            f.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            f.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(id, f);
+        }
+    }
+
+    /**
+     * Из базы одним запросом загружаются только ключи, которые никто не грузит, затем ожидаются остальные
+     *
+     * @return значения по всем ids, NullValue для отсутствующих сущностей
+     */
+    @NotNull
+    private Map<PK, Object> load(@NotNull Set<PK> ids) {
+        final Map<PK, CompletableFuture<Object>> own = new HashMap<>();
+        final Map<PK, CompletableFuture<Object>> running = new HashMap<>();
+
+        for (PK id : ids) {
+            final CompletableFuture<Object> f = new CompletableFuture<>();
+            final CompletableFuture<Object> r = loading.putIfAbsent(id, f);
+            if (r == null) {
+                own.put(id, f);
+            } else {
+                running.put(id, r);
+            }
+        }
+
+        final Map<PK, Object> ret = new HashMap<>(ids.size() * 4 / 3 + 1);
+
+        if (!own.isEmpty()) {
+            try {
+                ret.putAll(fetchAndPut(own.keySet()));
+                own.forEach((id, f) -> f.complete(ret.get(id)));
+            } catch (RuntimeException | Error e) {
+                own.values().forEach(f -> f.completeExceptionally(e));
+                throw e;
+            } finally {
+                own.forEach(loading::remove);
+            }
+        }
+
+        getCacheStats().coalesced.add(running.size());
+
+        for (Map.Entry<PK, CompletableFuture<Object>> r : running.entrySet()) {
+            ret.put(r.getKey(), await(r.getValue()));
+        }
+
+        return ret;
+    }
+
+    @NotNull
+    private static Object await(@NotNull CompletableFuture<Object> f) {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw e;
+        }
+    }
+
+    /**
+     * Счетчики фабрики, регистрируются при первом обращении под именем "Factory:Entity"
+     */
+    @NotNull
+    public ModelCacheStats getCacheStats() {
+        ModelCacheStats s = cacheStats;
+        if (s == null) {
+            s = ModelCacheStats.get(getClass().getSimpleName() + ":" + getEntityClass().getSimpleName());
+            cacheStats = s;
+        }
+        return s;
+    }
+
+    /**
+     * Включить refresh-ahead: записи кладутся в кеш с lifespan = hardTtlMs, а записи старше softTtlMs отдаются
+     * из кеша и одновременно перезагружаются в фоне. Синхронный промах бывает только после hardTtlMs
+     * без обращений.
+     */
+    public void setRefreshAhead(long softTtlMs, long hardTtlMs) {
+        if (softTtlMs <= 0 || hardTtlMs <= softTtlMs) {
+            throw new IllegalArgumentException("required 0 < softTtlMs < hardTtlMs");
+        }
+        this.softTtlMs = softTtlMs;
+        this.hardTtlMs = hardTtlMs;
+    }
+
+    public long getSoftTtlMs() {
+        return softTtlMs;
+    }
+
+    public long getHardTtlMs() {
+        return hardTtlMs;
+    }
+
+    public void setRefreshExecutor(@NotNull Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Включить накопление инвалидаций: повторы ключа в пределах окна схлопываются, а пакет уходит в кластер
+     * одной командой на узел. Другие узлы могут отдавать старое значение
+     * до windowMs дольше, чем без окна.
+     *
+     * @param windowMs окно в мс, 0 - выключить
+     */
+    public void setInvalidationWindow(long windowMs) {
+        if (windowMs < 0) {
+            throw new IllegalArgumentException("windowMs must be >= 0");
+        }
+        this.invalidationWindowMs = windowMs;
+        if (windowMs == 0) {
+            flushInvalidations();
+        }
+    }
+
+    public long getInvalidationWindowMs() {
+        return invalidationWindowMs;
     }
 
     @Nullable
@@ -179,10 +968,38 @@ public abstract class AbstractCachedModelFactory<PK, ENTITY, E extends Exception
     }
 
     final public void setCache(@Nullable Cache<PK, ENTITY> cache) {
+        if (this.cache != null && invalidationListener != null) {
+            this.cache.removeListener(invalidationListener);
+            invalidationListener = null;
+        }
+
+        if (hotTier != null) {
+            hotTier.invalidateAll();
+        }
+
         this.cache = (Cache) cache;
         _afterPropertiesSet();
     }
 
+    /**
+     * Включить on-heap hot tier перед основным кешем. Объекты hot tier отдаются читателям без копирования,
+     * поэтому режим доступен только для {@link ReadMode#SHARED}.
+     *
+     * @param maxEntries        размер hot tier (LRU)
+     * @param expireAfterWriteMs сколько запись живет в hot tier, ограничивает ее возраст при refresh-ahead
+     */
+    public synchronized void setHotTier(long maxEntries, long expireAfterWriteMs) {
+        if (copyOnRead) {
+            throw new IllegalStateException("hot tier requires ReadMode.SHARED");
+        }
+
+        hotTier = CacheBuilder.newBuilder()
+                              .maximumSize(maxEntries)
+                              .expireAfterWrite(expireAfterWriteMs, TimeUnit.MILLISECONDS)
+                              .build();
+        _afterPropertiesSet();
+    }
+
     protected void setCreatedAt(@NotNull ENTITY e, long timestamp_mcs) {
         CreatedAtIF.setCreatedAt(e, timestamp_mcs / 1000);
     }
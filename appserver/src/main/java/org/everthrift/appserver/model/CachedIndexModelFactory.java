@@ -1,43 +1,76 @@
 package org.everthrift.appserver.model;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.infinispan.Cache;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.util.CollectionUtils;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
 
+/**
+ * Наследник реализует один из loadImpl: типизированный {@link #loadImpl(Collection, BiConsumer)} или
+ * устаревший {@link #loadImpl(Collection)}. Реализация по умолчанию каждого из них вызывает другой.
+ */
 public abstract class CachedIndexModelFactory<PK, ENTITY, E extends Exception> extends AbstractCachedModelFactory<PK, List<ENTITY>, E>
     implements RoModelFactoryIF<PK, List<ENTITY>, E> {
 
     /**
      * @param keys
      * @return Object[] = Object[]{value, key}
+     * @deprecated нужно реализовать {@link #loadImpl(Collection, BiConsumer)}, он не создает промежуточных массивов
      */
-    protected abstract Collection<Object[]> loadImpl(Collection<PK> keys);
+    @Deprecated
+    protected Collection<Object[]> loadImpl(Collection<PK> keys) {
+        final List<Object[]> ret = new ArrayList<>();
+        loadImpl(keys, (k, v) -> ret.add(new Object[]{v, k}));
+        return ret;
+    }
+
+    /**
+     * Загрузить значения индекса для keys и передать каждую пару (key, value) в consumer. Значения одного ключа
+     * передаются в том порядке, в котором они должны лежать в списке.
+     */
+    @SuppressWarnings("unchecked")
+    protected void loadImpl(@NotNull Collection<PK> keys, @NotNull BiConsumer<PK, ENTITY> consumer) {
+        final Collection<Object[]> c = loadImpl(keys);
+        if (c != null) {
+            for (Object[] o : c) {
+                consumer.accept((PK) o[1], (ENTITY) o[0]);
+            }
+        }
+    }
 
     public CachedIndexModelFactory(Cache<PK, List<ENTITY>> cache, boolean copyOnRead) {
         super(cache, copyOnRead);
-    }
 
-    @Override
-    public List<ENTITY> fetchEntityById(@NotNull PK id) {
-        final Collection<Object[]> c = loadImpl(Collections.singleton(id));
-        if (CollectionUtils.isEmpty(c)) {
-            return Collections.emptyList();
+        if (!overridesLoadImpl(Collection.class) && !overridesLoadImpl(Collection.class, BiConsumer.class)) {
+            throw new IllegalStateException(getClass().getName() + " must implement loadImpl(Collection, BiConsumer)");
         }
+    }
 
-        final List<ENTITY> ret = Lists.newArrayList();
-        for (Object[] o : c) {
-            ret.add((ENTITY) o[0]);
+    private boolean overridesLoadImpl(Class<?>... parameterTypes) {
+        for (Class<?> c = getClass(); c != CachedIndexModelFactory.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("loadImpl", parameterTypes);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // ищем выше
+            }
         }
+        return false;
+    }
 
-        return ret;
+    @Override
+    public List<ENTITY> fetchEntityById(@NotNull PK id) {
+        final List<ENTITY> ret = new ArrayList<>();
+        loadImpl(Collections.singleton(id), (k, v) -> ret.add(v));
+        return ret.isEmpty() ? Collections.emptyList() : ret;
     }
 
     @NotNull
@@ -48,28 +81,22 @@ public abstract class CachedIndexModelFactory<PK, ENTITY, E extends Exception> e
             return Collections.emptyMap();
         }
 
-        final Collection<Object[]> c = loadImpl(ids);
         final Map<PK, List<ENTITY>> ret = Maps.newHashMapWithExpectedSize(ids.size());
 
-        if (!CollectionUtils.isEmpty(c)) {
-            for (final Object[] o : c) {
-                final ENTITY v = (ENTITY) o[0];
-                final PK k = (PK) o[1];
-                List<ENTITY> vv = ret.get(k);
-                if (vv == null) {
-                    vv = Lists.newArrayList();
-                    ret.put(k, vv);
-                }
-                vv.add(v);
+        loadImpl(ids, (k, v) -> {
+            List<ENTITY> vv = ret.get(k);
+            if (vv == null) {
+                vv = new ArrayList<>();
+                ret.put(k, vv);
             }
-        }
+            vv.add(v);
+        });
 
         for (PK id : ids) {
-            if (!ret.containsKey(id)) {
-                ret.put(id, Collections.EMPTY_LIST);
-            }
+            ret.putIfAbsent(id, Collections.emptyList());
         }
 
         return ret;
     }
+
 }
@@ -1,18 +1,48 @@
 package org.everthrift.appserver.model;
 
-import com.google.common.eventbus.AsyncEventBus;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionContext;
 import com.google.common.eventbus.SubscriberExceptionHandler;
+import org.everthrift.appserver.model.events.DeleteEntityEvent;
+import org.everthrift.appserver.model.events.InsertEntityEvent;
+import org.everthrift.appserver.model.events.UpdateEntityEvent;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Шина событий внутри узла.
+ * <p>
+ * post() доставляет событие подписчикам в вызывающем потоке. postAsync() кладет событие в одну из partitions
+ * ограниченных очередей, выбранную по ключу: для событий сущностей это PK, для остальных - класс события.
+ * Каждая очередь разбирается на executor не более чем одним потоком, поэтому события одного ключа приходят
+ * подписчикам в порядке отправки, а разные ключи обрабатываются параллельно.
+ * <p>
+ * Если в partition уже queueCapacity событий, отправитель ждет места до offerTimeoutMs (backpressure), после чего
+ * postAsync бросает RejectedExecutionException. Исключение одно: подписчик, отправляющий событие в partition,
+ * которую сам разбирает, не ждет (место освобождает только он сам) и кладет событие сверх лимита. Такие события
+ * идут в ту же очередь, поэтому порядок событий ключа сохраняется.
+ * Подписчики, которые можно вызывать из нескольких потоков одновременно, стоит пометить @AllowConcurrentEvents,
+ * иначе Guava сериализует вызовы одного подписчика.
+ */
+@ManagedResource(objectName = "bean:name=LocalEventBus")
 public class LocalEventBus implements InitializingBean {
 
     private static final Logger log = LoggerFactory.getLogger(LocalEventBus.class);
@@ -23,11 +53,130 @@ public class LocalEventBus implements InitializingBean {
 
     private EventBus eventBus;
 
-    private EventBus asyncEventBus;
-
     @Autowired
     private boolean testMode;
 
+    @Value("${eventbus.partitions:16}")
+    private int partitions = 16;
+
+    @Value("${eventbus.queueCapacity:10000}")
+    private int queueCapacity = 10000;
+
+    @Value("${eventbus.offerTimeoutMs:100}")
+    private long offerTimeoutMs = 100;
+
+    /**
+     * Сколько событий разбирается за один запуск на executor, чтобы очереди делили потоки честно
+     */
+    private static final int DRAIN_BATCH = 256;
+
+    private Partition[] queues;
+
+    /**
+     * Очередь, которую разбирает текущий поток, нужна, чтобы подписчик не ждал места в своей же очереди
+     */
+    private final ThreadLocal<Partition> draining = new ThreadLocal<>();
+
+    /**
+     * Событие, положенное в свою partition ее же подписчиком сверх queueCapacity, места в лимите не занимает
+     */
+    private static final class Reentrant {
+        final Object event;
+
+        Reentrant(Object event) {
+            this.event = event;
+        }
+    }
+
+    private class Partition implements Runnable {
+
+        final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Свободные места в queue
+         */
+        final Semaphore permits = new Semaphore(queueCapacity);
+
+        final AtomicInteger depth = new AtomicInteger();
+
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        final LongAdder posted = new LongAdder();
+
+        final LongAdder reentrant = new LongAdder();
+
+        final LongAdder rejected = new LongAdder();
+
+        final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+
+        void offer(@NotNull Object event) {
+            if (permits.tryAcquire()) {
+                queue.add(event);
+            } else if (draining.get() == this) {
+                reentrant.increment();
+                queue.add(new Reentrant(event));
+            } else {
+                boolean acquired = false;
+                try {
+                    acquired = permits.tryAcquire(offerTimeoutMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                if (!acquired) {
+                    rejected.increment();
+                    schedule();
+                    throw new RejectedExecutionException("Event queue is full: " + event.getClass().getSimpleName());
+                }
+                queue.add(event);
+            }
+
+            posted.increment();
+            maxDepth.accumulate(depth.incrementAndGet());
+            schedule();
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    log.error("Couldn't schedule event queue", e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            final Partition prev = draining.get();
+            draining.set(this);
+            try {
+                for (int i = 0; i < DRAIN_BATCH; i++) {
+                    final Object event = queue.poll();
+                    if (event == null) {
+                        break;
+                    }
+                    depth.decrementAndGet();
+
+                    if (event instanceof Reentrant) {
+                        eventBus.post(((Reentrant) event).event);
+                    } else {
+                        permits.release();
+                        eventBus.post(event);
+                    }
+                }
+            } finally {
+                draining.set(prev);
+                scheduled.set(false);
+            }
+
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
     public LocalEventBus() {
 
     }
@@ -47,18 +196,14 @@ public class LocalEventBus implements InitializingBean {
             }
         });
 
-        asyncEventBus = new AsyncEventBus(executor, new SubscriberExceptionHandler() {
-
-            @Override
-            public void handleException(Throwable exception, SubscriberExceptionContext context) {
-                log.error("Exception in asyncEventBus", exception);
-            }
-        });
+        queues = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            queues[i] = new Partition();
+        }
     }
 
     public void register(@NotNull Object object) {
         eventBus.register(object);
-        asyncEventBus.register(object);
     }
 
     public void postEntityEvent(@NotNull Object event) {
@@ -74,7 +219,17 @@ public class LocalEventBus implements InitializingBean {
     }
 
     public void postAsync(@NotNull Object event) {
-        asyncEventBus.post(event);
+        postAsync(partitionKey(event), event);
+    }
+
+    /**
+     * Асинхронная доставка с явным ключом упорядочивания: события с равными key доставляются по порядку
+     *
+     * @throws RejectedExecutionException очередь ключа заполнена и место не освободилось за offerTimeoutMs
+     */
+    public void postAsync(@NotNull Object key, @NotNull Object event) {
+        final int h = key.hashCode();
+        queues[((h ^ (h >>> 16)) & 0x7fffffff) % queues.length].offer(event);
     }
 
     public void postAsyncIfNotTest(@NotNull Object event) {
@@ -84,6 +239,26 @@ public class LocalEventBus implements InitializingBean {
             postAsync(event);
     }
 
+    @NotNull
+    private static Object partitionKey(@NotNull Object event) {
+        final Object pk;
+        if (event instanceof InsertEntityEvent) {
+            pk = pkOf(((InsertEntityEvent) event).entity);
+        } else if (event instanceof UpdateEntityEvent) {
+            pk = pkOf(((UpdateEntityEvent) event).afterUpdate);
+        } else if (event instanceof DeleteEntityEvent) {
+            pk = pkOf(((DeleteEntityEvent) event).entity);
+        } else {
+            pk = null;
+        }
+        return pk != null ? pk : event.getClass();
+    }
+
+    @Nullable
+    private static Object pkOf(@Nullable DaoEntityIF e) {
+        return e != null ? e.getPk() : null;
+    }
+
     public Executor getExecutor() {
         return executor;
     }
@@ -92,4 +267,49 @@ public class LocalEventBus implements InitializingBean {
         this.executor = executor;
     }
 
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setOfferTimeoutMs(long offerTimeoutMs) {
+        this.offerTimeoutMs = offerTimeoutMs;
+    }
+
+    /**
+     * @return суммарное число событий в очередях
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Partition p : queues) {
+            depth += p.depth.get();
+        }
+        return depth;
+    }
+
+    @NotNull
+    @ManagedOperation(description = "getQueueLog")
+    public String getQueueLog() {
+        final StringBuilder wr = new StringBuilder();
+        wr.append(String.format("%4s, %8s, %8s, %12s, %9s, %9s\n", "#", "depth", "max", "posted", "reentrant", "rejected"));
+        for (int i = 0; i < queues.length; i++) {
+            final Partition p = queues[i];
+            wr.append(String.format("%4d, %8d, %8d, %12d, %9d, %9d\n", i, p.depth.get(), p.maxDepth.get(),
+                                    p.posted.sum(), p.reentrant.sum(), p.rejected.sum()));
+        }
+        return wr.toString();
+    }
+
+    @ManagedOperation(description = "resetQueueLog")
+    public void resetQueueLog() {
+        for (Partition p : queues) {
+            p.maxDepth.reset();
+            p.posted.reset();
+            p.reentrant.reset();
+            p.rejected.reset();
+        }
+    }
 }
@@ -0,0 +1,33 @@
+package org.everthrift.appserver.model;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongCollection;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.infinispan.Cache;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Индекс с ключом Long
+ */
+public abstract class LongCachedIndexModelFactory<ENTITY, E extends Exception> extends CachedIndexModelFactory<Long, ENTITY, E> {
+
+    public LongCachedIndexModelFactory(Cache<Long, List<ENTITY>> cache, boolean copyOnRead) {
+        super(cache, copyOnRead);
+    }
+
+    /**
+     * Пакетный поиск по примитивным ключам: результат заполняется сразу в Long2ObjectMap без промежуточной
+     * HashMap, промахи загружаются одним запросом. Запросы к кешу по-прежнему работают с Long.
+     */
+    @NotNull
+    public Long2ObjectMap<List<ENTITY>> findByLongKeys(@NotNull LongCollection keys) {
+        final Long2ObjectOpenHashMap<List<ENTITY>> ret = new Long2ObjectOpenHashMap<>(keys.size());
+        if (!keys.isEmpty()) {
+            findEntityByIdAsMap(keys instanceof LongOpenHashSet ? (LongOpenHashSet) keys : new LongOpenHashSet(keys), ret);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,38 @@
+package org.everthrift.appserver.model;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+@ManagedResource(objectName = "bean:name=ModelCache")
+public class ModelCacheJmx {
+
+    private static final Logger log = LoggerFactory.getLogger(ModelCacheJmx.class);
+
+    @NotNull
+    @ManagedOperation(description = "getCacheLog")
+    public String getCacheLog() {
+        return ModelCacheStats.getLogString();
+    }
+
+    @Nullable
+    @ManagedOperation(description = "getCacheStats")
+    public String getCacheStats(String name) {
+        final ModelCacheStats stats = ModelCacheStats.getAll().get(name);
+        return stats != null ? stats.toString() : null;
+    }
+
+    @ManagedOperation(description = "logCacheLog")
+    public void logCacheLog() {
+        log.info("\n{}", ModelCacheStats.getLogString());
+    }
+
+    @ManagedOperation(description = "resetCacheLog")
+    public void resetCacheLog() {
+        ModelCacheStats.resetAll();
+    }
+
+}
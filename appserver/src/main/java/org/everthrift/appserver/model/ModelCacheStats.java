@@ -0,0 +1,204 @@
+package org.everthrift.appserver.model;
+
+import org.everthrift.utils.ExecutionStats;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счетчики кеша одной фабрики ({@link AbstractCachedModelFactory}). Время загрузок в mcs.
+ */
+public class ModelCacheStats {
+
+    private static final ConcurrentHashMap<String, ModelCacheStats> registry = new ConcurrentHashMap<>();
+
+    @NotNull
+    public final String name;
+
+    /**
+     * Попадания в основной кеш, включая NullValue
+     */
+    public final LongAdder hits = new LongAdder();
+
+    /**
+     * Из них попадания в NullValue.INSTANCE (сущности нет в базе)
+     */
+    public final LongAdder nullHits = new LongAdder();
+
+    /**
+     * Попадания в hot tier
+     */
+    public final LongAdder hotHits = new LongAdder();
+
+    public final LongAdder misses = new LongAdder();
+
+    /**
+     * Промахи, дождавшиеся загрузки, начатой другим потоком
+     */
+    public final LongAdder coalesced = new LongAdder();
+
+    public final LongAdder batchLoadedKeys = new LongAdder();
+
+    public final LongAdder refreshes = new LongAdder();
+
+    public final LongAdder refreshRejected = new LongAdder();
+
+    public final LongAdder loadErrors = new LongAdder();
+
+    /**
+     * Загрузки, не положенные в кеш, потому что ключ инвалидировался во время запроса в базу
+     */
+    public final LongAdder staleLoads = new LongAdder();
+
+    /**
+     * Повторы оптимистичного обновления после конфликта версий
+     */
+    public final LongAdder optimisticRetries = new LongAdder();
+
+    /**
+     * Обновления, не выполненные за maxIterations попыток
+     */
+    public final LongAdder optimisticFailures = new LongAdder();
+
+    /**
+     * Обновления, выполненные в составе чужой записи (см. UpdateCombiner)
+     */
+    public final LongAdder combinedUpdates = new LongAdder();
+
+    /**
+     * Ключи, инвалидированные в кластере, после схлопывания повторов
+     */
+    public final LongAdder invalidatedKeys = new LongAdder();
+
+    /**
+     * Пакеты ключей, инвалидированные в кластере одной командой
+     */
+    public final LongAdder invalidationBatches = new LongAdder();
+
+    /**
+     * fetchEntityById
+     */
+    public final ExecutionStats singleLoads = new ExecutionStats();
+
+    /**
+     * fetchEntityByIdAsMap, одно значение на запрос к базе
+     */
+    public final ExecutionStats batchLoads = new ExecutionStats();
+
+    private ModelCacheStats(@NotNull String name) {
+        this.name = name;
+    }
+
+    @NotNull
+    public static ModelCacheStats get(@NotNull String name) {
+        return registry.computeIfAbsent(name, ModelCacheStats::new);
+    }
+
+    @NotNull
+    public static Map<String, ModelCacheStats> getAll() {
+        return registry;
+    }
+
+    public long getRequests() {
+        return hits.sum() + hotHits.sum() + misses.sum();
+    }
+
+    /**
+     * @return процент запросов, обслуженных без обращения к базе
+     */
+    public long getHitRatio() {
+        final long requests = getRequests();
+        return requests == 0 ? 0 : (hits.sum() + hotHits.sum()) * 100 / requests;
+    }
+
+    public void reset() {
+        hits.reset();
+        nullHits.reset();
+        hotHits.reset();
+        misses.reset();
+        coalesced.reset();
+        batchLoadedKeys.reset();
+        refreshes.reset();
+        refreshRejected.reset();
+        loadErrors.reset();
+        staleLoads.reset();
+        optimisticRetries.reset();
+        optimisticFailures.reset();
+        combinedUpdates.reset();
+        invalidatedKeys.reset();
+        invalidationBatches.reset();
+        singleLoads.reset();
+        batchLoads.reset();
+    }
+
+    public static void resetAll() {
+        registry.values().forEach(ModelCacheStats::reset);
+    }
+
+    @Override
+    public String toString() {
+        final ExecutionStats single = new ExecutionStats(singleLoads);
+        final ExecutionStats batch = new ExecutionStats(batchLoads);
+        return "ModelCacheStats{" +
+            "name='" + name + '\'' +
+            ", hitRatio=" + getHitRatio() + "%" +
+            ", hits=" + hits.sum() +
+            ", nullHits=" + nullHits.sum() +
+            ", hotHits=" + hotHits.sum() +
+            ", misses=" + misses.sum() +
+            ", coalesced=" + coalesced.sum() +
+            ", singleLoads=" + single +
+            ", batchLoads=" + batch +
+            ", batchLoadedKeys=" + batchLoadedKeys.sum() +
+            ", refreshes=" + refreshes.sum() +
+            ", refreshRejected=" + refreshRejected.sum() +
+            ", loadErrors=" + loadErrors.sum() +
+            ", staleLoads=" + staleLoads.sum() +
+            ", optimisticRetries=" + optimisticRetries.sum() +
+            ", optimisticFailures=" + optimisticFailures.sum() +
+            ", combinedUpdates=" + combinedUpdates.sum() +
+            ", invalidatedKeys=" + invalidatedKeys.sum() +
+            ", invalidationBatches=" + invalidationBatches.sum() +
+            '}';
+    }
+
+    @NotNull
+    public static String getLogString() {
+        final List<ModelCacheStats> list = new ArrayList<>(registry.values());
+        list.removeIf(s -> s.getRequests() == 0);
+        list.sort(Comparator.comparingLong(ModelCacheStats::getRequests).reversed());
+
+        final StringBuilder wr = new StringBuilder();
+        wr.append(String.format("%10s, %4s, %10s, %10s, %10s, %8s, %8s, %7s, %7s, %8s, %7s, %7s, %8s, %6s, \"%s\"\n",
+                                "requests", "hit%", "hits", "null hits", "hot hits", "misses", "coalesc", "1 avr", "1 p99",
+                                "batches", "b avr", "b p99", "refresh", "errors", "factory"));
+
+        for (ModelCacheStats s : list) {
+            final ExecutionStats single = new ExecutionStats(s.singleLoads);
+            final ExecutionStats batch = new ExecutionStats(s.batchLoads);
+            wr.append(String.format("%10d, %4d, %10d, %10d, %10d, %8d, %8d, %7d, %7d, %8d, %7d, %7d, %8d, %6d, \"%s\"\n",
+                                    s.getRequests(),
+                                    s.getHitRatio(),
+                                    s.hits.sum(),
+                                    s.nullHits.sum(),
+                                    s.hotHits.sum(),
+                                    s.misses.sum(),
+                                    s.coalesced.sum(),
+                                    single.getAverageTime(), // mcs на загрузку одной сущности
+                                    single.getP99(),
+                                    batch.getCount(),
+                                    batch.getAverageTime(), // mcs на пакетную загрузку
+                                    batch.getP99(),
+                                    s.refreshes.sum(),
+                                    s.loadErrors.sum(),
+                                    s.name));
+        }
+
+        return wr.toString();
+    }
+}
@@ -0,0 +1,44 @@
+package org.everthrift.appserver.model;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.StorageType;
+import org.infinispan.eviction.EvictionType;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Локальные кеши для {@link AbstractCachedModelFactory}, хранящие значения вне heap.
+ * <p>
+ * Infinispan сериализует значения в direct memory, TBaseModel при этом пишется своим Externalizable
+ * (compact protocol + LZ4), поэтому запись занимает в несколько раз меньше, чем объект в heap, и не нагружает GC.
+ * Размер ограничивается в байтах. Каждое попадание стоит декодирования; самые частые ключи стоит держать
+ * в hot tier фабрики ({@link AbstractCachedModelFactory#setHotTier(long, long)}).
+ * Для работы достаточно одной JVM: new DefaultCacheManager() без transport.
+ */
+public final class OffHeapCaches {
+
+    private OffHeapCaches() {
+    }
+
+    @NotNull
+    public static Configuration configuration(long maxBytes) {
+        return new ConfigurationBuilder().memory()
+                                         .storageType(StorageType.OFF_HEAP)
+                                         .evictionType(EvictionType.MEMORY)
+                                         .size(maxBytes)
+                                         .build();
+    }
+
+    /**
+     * Создать (или получить уже созданный) off-heap кеш с именем name
+     */
+    @NotNull
+    public static <K, V> Cache<K, V> getOrCreate(@NotNull EmbeddedCacheManager cm, @NotNull String name, long maxBytes) {
+        if (!cm.cacheExists(name) && cm.getCacheConfiguration(name) == null) {
+            cm.defineConfiguration(name, configuration(maxBytes));
+        }
+        return cm.getCache(name);
+    }
+}
@@ -8,7 +8,6 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.Serializable;
-import java.util.Random;
 import java.util.function.Consumer;
 
 public interface OptimisticLockModelFactoryIF<PK extends Serializable, ENTITY extends DaoEntityIF, E extends TException>
@@ -44,31 +43,57 @@ public interface OptimisticLockModelFactoryIF<PK extends Serializable, ENTITY ex
 
     @NotNull
     static <T> T optimisticUpdate(@NotNull UpdateFunction<T> updateFunction) throws OptimisticUpdateFailException, EntityNotFoundException, TException {
-        return optimisticUpdate(updateFunction, MAX_ITERATIONS, MAX_TIMEOUT);
+        return optimisticUpdate(updateFunction, OptimisticRetryPolicy.DEFAULT, null);
     }
 
     @NotNull
     static <T> T optimisticUpdate(@NotNull UpdateFunction<T> updateFunction, int maxIteration,
                                   int maxTimeoutMillis) throws OptimisticUpdateFailException, EntityNotFoundException, TException {
+        // Раньше maxIteration < 1 означало одну попытку
+        final int attempts = Math.max(1, maxIteration);
+        final OptimisticRetryPolicy policy = maxTimeoutMillis <= 0 ? new OptimisticRetryPolicy(attempts, 0, 0)
+                                                                   : new OptimisticRetryPolicy(attempts, Math.max(1, maxTimeoutMillis / 32), maxTimeoutMillis);
+        return optimisticUpdate(updateFunction, policy, null);
+    }
+
+    /**
+     * @param stats если задан, в нем считаются конфликты (повторы) и исчерпанные попытки
+     */
+    @NotNull
+    static <T> T optimisticUpdate(@NotNull UpdateFunction<T> updateFunction, @NotNull OptimisticRetryPolicy policy,
+                                  @Nullable ModelCacheStats stats) throws OptimisticUpdateFailException, EntityNotFoundException, TException {
         int i = 0;
-        T updated = null;
-        do {
+        T updated;
+        while (true) {
             updated = updateFunction.apply(i);
+            if (updated != null) {
+                return updated;
+            }
 
             i++;
-            if (updated == null) {
+            if (i >= policy.maxIterations) {
+                break;
+            }
+
+            if (stats != null) {
+                stats.optimisticRetries.increment();
+            }
+
+            final long delay = policy.delayMs(i);
+            if (delay > 0) {
                 try {
-                    Thread.sleep(new Random().nextInt(maxTimeoutMillis));
+                    Thread.sleep(delay);
                 } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
-        } while (updated == null && i < maxIteration);
-
-        if (updated == null) {
-            throw new OptimisticUpdateFailException();
         }
 
-        return updated;
+        if (stats != null) {
+            stats.optimisticFailures.increment();
+        }
+        throw new OptimisticUpdateFailException();
     }
 
     @Override
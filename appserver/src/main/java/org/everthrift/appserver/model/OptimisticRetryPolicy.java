@@ -0,0 +1,51 @@
+package org.everthrift.appserver.model;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Параметры повторов оптимистичного обновления: экспоненциальная задержка со случайным разбросом (full jitter).
+ * Перед попыткой n (с 1) поток спит случайное время из [0, min(maxDelayMs, baseDelayMs * 2^(n-1))], поэтому
+ * при конфликте на горячей записи частота повторов падает, а не растет вместе с числом конкурентов.
+ */
+public final class OptimisticRetryPolicy {
+
+    @NotNull
+    public static final OptimisticRetryPolicy DEFAULT = new OptimisticRetryPolicy(OptimisticLockModelFactoryIF.MAX_ITERATIONS, 2,
+                                                                                   OptimisticLockModelFactoryIF.MAX_TIMEOUT);
+
+    public final int maxIterations;
+
+    public final long baseDelayMs;
+
+    public final long maxDelayMs;
+
+    public OptimisticRetryPolicy(int maxIterations, long baseDelayMs, long maxDelayMs) {
+        if (maxIterations < 1 || baseDelayMs < 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException("required maxIterations >= 1 and 0 <= baseDelayMs <= maxDelayMs");
+        }
+        this.maxIterations = maxIterations;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * @param attempt номер повтора, начиная с 1
+     * @return задержка перед повтором в мс
+     */
+    public long delayMs(int attempt) {
+        final int shift = Math.min(attempt - 1, 30);
+        final long cap = Math.min(maxDelayMs, baseDelayMs << shift);
+        return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "OptimisticRetryPolicy{" +
+            "maxIterations=" + maxIterations +
+            ", baseDelayMs=" + baseDelayMs +
+            ", maxDelayMs=" + maxDelayMs +
+            '}';
+    }
+}
@@ -0,0 +1,211 @@
+package org.everthrift.appserver.model;
+
+import org.apache.thrift.TException;
+import org.everthrift.thrift.TFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Объединяет конкурентные обновления одного ключа в одну запись (flat combining).
+ * <p>
+ * Поток ставит свой mutator в очередь ключа и берет блокировку ключа. Если к этому моменту его обновление
+ * уже выполнил предыдущий владелец блокировки, поток просто возвращает результат. Иначе он забирает всю очередь и
+ * выполняет одно оптимистичное обновление, применяющее все mutator'ы по порядку. Все участники получают один
+ * и тот же OptResult: beforeUpdate - состояние до всех изменений пакета, afterUpdate - после.
+ * <p>
+ * Если исключение бросил один из mutator'ов, они выполняются по одному, и каждый получает свой результат или свое
+ * исключение. Если же не удалась сама запись (например, OptimisticUpdateFailException после всех попыток),
+ * все участники получают это исключение: повторять обновления по одному означало бы умножить нагрузку на ту же
+ * горячую запись.
+ */
+public class UpdateCombiner<PK, ENTITY extends DaoEntityIF> {
+
+    public interface Updater<PK, ENTITY extends DaoEntityIF> {
+        @NotNull
+        OptResult<ENTITY> update(@NotNull PK id, @NotNull TFunction<ENTITY, Boolean> mutator,
+                                 @Nullable EntityFactory<PK, ENTITY> factory) throws TException;
+    }
+
+    private static class Pending<PK, ENTITY extends DaoEntityIF> {
+        final TFunction<ENTITY, Boolean> mutator;
+
+        @Nullable
+        final EntityFactory<PK, ENTITY> factory;
+
+        final CompletableFuture<OptResult<ENTITY>> result = new CompletableFuture<>();
+
+        Pending(TFunction<ENTITY, Boolean> mutator, @Nullable EntityFactory<PK, ENTITY> factory) {
+            this.mutator = mutator;
+            this.factory = factory;
+        }
+    }
+
+    private static class KeyQueue<PK, ENTITY extends DaoEntityIF> {
+        final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Guarded by this
+         */
+        List<Pending<PK, ENTITY>> items = new ArrayList<>();
+
+        /**
+         * Изменяется только внутри ConcurrentHashMap.compute по ключу очереди
+         */
+        int users;
+    }
+
+    private final ConcurrentHashMap<PK, KeyQueue<PK, ENTITY>> queues = new ConcurrentHashMap<>();
+
+    @Nullable
+    private final ModelCacheStats stats;
+
+    public UpdateCombiner(@Nullable ModelCacheStats stats) {
+        this.stats = stats;
+    }
+
+    @NotNull
+    public OptResult<ENTITY> update(@NotNull PK id, @NotNull TFunction<ENTITY, Boolean> mutator,
+                                    @Nullable EntityFactory<PK, ENTITY> factory,
+                                    @NotNull Updater<PK, ENTITY> updater) throws TException {
+
+        final Pending<PK, ENTITY> p = new Pending<>(mutator, factory);
+        final KeyQueue<PK, ENTITY> q = queues.compute(id, (k, v) -> {
+            if (v == null) {
+                v = new KeyQueue<>();
+            }
+            v.users++;
+            return v;
+        });
+
+        try {
+            synchronized (q) {
+                q.items.add(p);
+            }
+
+            q.lock.lock();
+            try {
+                if (!p.result.isDone()) {
+                    final List<Pending<PK, ENTITY>> batch;
+                    synchronized (q) {
+                        batch = q.items;
+                        q.items = new ArrayList<>();
+                    }
+                    execute(id, batch, updater);
+                } else if (stats != null) {
+                    stats.combinedUpdates.increment();
+                }
+            } finally {
+                q.lock.unlock();
+            }
+        } finally {
+            queues.computeIfPresent(id, (k, v) -> --v.users == 0 ? null : v);
+        }
+
+        try {
+            return p.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof TException) {
+                throw (TException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new TException(cause);
+        }
+    }
+
+    /**
+     * @return число ключей, по которым сейчас есть участники
+     */
+    int activeKeys() {
+        return queues.size();
+    }
+
+    /**
+     * @return число обновлений ключа, ждущих владельца блокировки
+     */
+    int pending(@NotNull PK id) {
+        final KeyQueue<PK, ENTITY> q = queues.get(id);
+        if (q == null) {
+            return 0;
+        }
+        synchronized (q) {
+            return q.items.size();
+        }
+    }
+
+    /**
+     * Обновления с разными EntityFactory объединять нельзя: от factory зависит, создается ли сущность
+     */
+    private void execute(@NotNull PK id, @NotNull List<Pending<PK, ENTITY>> batch, @NotNull Updater<PK, ENTITY> updater) {
+        while (!batch.isEmpty()) {
+            final EntityFactory<PK, ENTITY> factory = batch.get(0).factory;
+            final List<Pending<PK, ENTITY>> group = new ArrayList<>(batch.size());
+            final Iterator<Pending<PK, ENTITY>> it = batch.iterator();
+            while (it.hasNext()) {
+                final Pending<PK, ENTITY> p = it.next();
+                if (p.factory == factory) {
+                    group.add(p);
+                    it.remove();
+                }
+            }
+
+            if (group.size() == 1) {
+                executeOne(id, group.get(0), updater);
+            } else {
+                executeGroup(id, group, factory, updater);
+            }
+        }
+    }
+
+    private void executeGroup(@NotNull PK id, @NotNull List<Pending<PK, ENTITY>> group,
+                              @Nullable EntityFactory<PK, ENTITY> factory, @NotNull Updater<PK, ENTITY> updater) {
+        final AtomicBoolean mutatorFailed = new AtomicBoolean(false);
+        final OptResult<ENTITY> r;
+        try {
+            r = updater.update(id, e -> {
+                boolean changed = false;
+                for (Pending<PK, ENTITY> p : group) {
+                    try {
+                        changed |= p.mutator.apply(e);
+                    } catch (TException | RuntimeException | Error t) {
+                        mutatorFailed.set(true);
+                        throw t;
+                    }
+                }
+                return changed;
+            }, factory);
+        } catch (Throwable e) {
+            if (mutatorFailed.get()) {
+                group.forEach(p -> executeOne(id, p, updater));
+            } else {
+                group.forEach(p -> p.result.completeExceptionally(e));
+            }
+            return;
+        }
+
+        group.forEach(p -> p.result.complete(r));
+    }
+
+    private void executeOne(@NotNull PK id, @NotNull Pending<PK, ENTITY> p, @NotNull Updater<PK, ENTITY> updater) {
+        try {
+            p.result.complete(updater.update(id, p.mutator, p.factory));
+        } catch (Throwable e) {
+            p.result.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.everthrift.appserver.model.lazy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Множество объектов по ссылке (==) с открытой адресацией. add() не берет блокировок и ничего не аллоцирует;
+ * монитор захватывается только при увеличении таблицы, которое случается O(log n) раз.
+ * <p>
+ * При увеличении каждая ячейка старой таблицы заменяется на MOVED, поэтому add(), попавший на перенесенную ячейку,
+ * дожидается конца переноса и повторяет поиск в новой таблице.
+ */
+final class ConcurrentIdentitySet {
+
+    private static final Object MOVED = new Object();
+
+    private volatile AtomicReferenceArray<Object> table;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    ConcurrentIdentitySet() {
+        this(64);
+    }
+
+    ConcurrentIdentitySet(int initialCapacity) {
+        table = new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1);
+    }
+
+    private static int spread(@NotNull Object o, int mask) {
+        final int h = System.identityHashCode(o) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return true, если объекта еще не было
+     */
+    boolean add(@NotNull Object o) {
+        while (true) {
+            final AtomicReferenceArray<Object> t = table;
+            final int mask = t.length() - 1;
+            int i = spread(o, mask);
+
+            boolean moved = false;
+            for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+                final Object cur = t.get(i);
+                if (cur == o) {
+                    return false;
+                } else if (cur == null) {
+                    if (t.compareAndSet(i, null, o)) {
+                        if (size.incrementAndGet() * 2 > t.length()) {
+                            resize(t);
+                        }
+                        return true;
+                    }
+                    // ячейку заняли, перечитываем ее
+                    i = (i - 1) & mask;
+                    probes--;
+                } else if (cur == MOVED) {
+                    moved = true;
+                    break;
+                }
+            }
+
+            if (moved || t == table) {
+                // ждем конца переноса (или таблица заполнена, а перенос еще не начат)
+                synchronized (this) {
+                    if (t == table) {
+                        resize(t);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void resize(@NotNull AtomicReferenceArray<Object> t) {
+        if (t != table) {
+            return;
+        }
+
+        final AtomicReferenceArray<Object> n = new AtomicReferenceArray<>(t.length() * 2);
+        final int mask = n.length() - 1;
+        int count = 0;
+
+        for (int i = 0; i < t.length(); i++) {
+            final Object o = t.getAndSet(i, MOVED);
+            if (o != null) {
+                int j = spread(o, mask);
+                while (n.get(j) != null) {
+                    j = (j + 1) & mask;
+                }
+                n.set(j, o);
+                count++;
+            }
+        }
+
+        size.set(count);
+        table = n;
+    }
+
+    int size() {
+        return size.get();
+    }
+}
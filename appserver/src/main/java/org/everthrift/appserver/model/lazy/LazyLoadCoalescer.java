@@ -0,0 +1,208 @@
+package org.everthrift.appserver.model.lazy;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Объединяет ленивые загрузки одного LazyLoader из разных запросов узла в один вызов process().
+ * <p>
+ * Первая сущность для загрузчика открывает пакет на windowMs, все registry, пришедшие за это время, дописывают
+ * в него свои сущности. Пакет уходит в загрузчик по окончании окна или при достижении maxBatch. Загрузчик сам
+ * проставляет значения в XAwareIF каждого запроса, поэтому разбирать результат по запросам не нужно; каждый
+ * участник получает число своих сущностей, если загрузчик что-то загрузил, иначе 0.
+ * <p>
+ * Каждая итерация загрузки ждет до windowMs, поэтому окно должно быть порядка миллисекунды.
+ * <p>
+ * Пакеты по окончании окна отправляет один общий поток таймера, поэтому загрузчики выполняются на отдельном
+ * пуле, который при переполнении отклоняет пакет, а не выполняет его в потоке таймера. Отклоненный пакет
+ * завершает загрузку участников с RejectedExecutionException.
+ */
+public class LazyLoadCoalescer {
+
+    private static final Logger log = LoggerFactory.getLogger(LazyLoadCoalescer.class);
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                                                                                                                             .setNameFormat("LazyLoadCoalescer-%d")
+                                                                                                                             .build());
+
+    private static final int LOAD_THREADS = Integer.getInteger("lazyload.threads", Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final ThreadPoolExecutor defaultExecutor = new ThreadPoolExecutor(LOAD_THREADS, LOAD_THREADS, 60L, TimeUnit.SECONDS,
+                                                                                     new ArrayBlockingQueue<>(Integer.getInteger("lazyload.queue", 10000)),
+                                                                                     new ThreadFactoryBuilder().setDaemon(true)
+                                                                                                               .setNameFormat("LazyLoadCoalescer-load-%d")
+                                                                                                               .build(),
+                                                                                     new ThreadPoolExecutor.AbortPolicy());
+
+    static {
+        defaultExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static class Part {
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        final int size;
+
+        Part(int size) {
+            this.size = size;
+        }
+    }
+
+    private static class Batch {
+        /**
+         * Guarded by this
+         */
+        final List<Object> entities = new ArrayList<>();
+
+        /**
+         * Guarded by this
+         */
+        final List<Part> parts = new ArrayList<>();
+
+        /**
+         * Guarded by this. Закрытый пакет уже отдан загрузчику
+         */
+        boolean closed;
+    }
+
+    private final ConcurrentHashMap<LazyLoader<?>, Batch> batches = new ConcurrentHashMap<>();
+
+    private final long windowMs;
+
+    private final int maxBatch;
+
+    @NotNull
+    private final Executor executor;
+
+    private final LongAdder submitted = new LongAdder();
+
+    private final LongAdder flushed = new LongAdder();
+
+    public LazyLoadCoalescer(long windowMs, int maxBatch) {
+        this(windowMs, maxBatch, defaultExecutor);
+    }
+
+    /**
+     * @param windowMs время сбора пакета
+     * @param maxBatch размер пакета, при котором он отправляется не дожидаясь конца окна
+     * @param executor где выполняются загрузчики. При переполнении должен бросать RejectedExecutionException,
+     *                 а не выполнять задачу в вызывающем потоке (CallerRunsPolicy остановит таймер всех загрузчиков)
+     */
+    public LazyLoadCoalescer(long windowMs, int maxBatch, @NotNull Executor executor) {
+        if (windowMs <= 0 || maxBatch <= 0) {
+            throw new IllegalArgumentException("windowMs and maxBatch must be > 0");
+        }
+        this.windowMs = windowMs;
+        this.maxBatch = maxBatch;
+        this.executor = executor;
+    }
+
+    @NotNull
+    public CompletableFuture<Integer> submit(@NotNull LazyLoader<?> loader, @NotNull List<Object> entities) {
+        submitted.increment();
+        final Part part = new Part(entities.size());
+
+        while (true) {
+            Batch b = batches.get(loader);
+            if (b == null) {
+                final Batch nb = new Batch();
+                b = batches.putIfAbsent(loader, nb);
+                if (b == null) {
+                    b = nb;
+                    timer.schedule(() -> flush(loader, nb), windowMs, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            final boolean full;
+            synchronized (b) {
+                if (b.closed) {
+                    batches.remove(loader, b);
+                    continue;
+                }
+                b.entities.addAll(entities);
+                b.parts.add(part);
+                full = b.entities.size() >= maxBatch;
+            }
+
+            if (full) {
+                flush(loader, b);
+            }
+            return part.result;
+        }
+    }
+
+    private void flush(@NotNull LazyLoader<?> loader, @NotNull Batch b) {
+        synchronized (b) {
+            if (b.closed) {
+                return;
+            }
+            b.closed = true;
+        }
+        batches.remove(loader, b);
+        flushed.increment();
+
+        try {
+            executor.execute(() -> run(loader, b));
+        } catch (RejectedExecutionException e) {
+            log.warn("Coalesced load rejected: {} entities", b.entities.size());
+            complete(b, null, e);
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static void run(@NotNull LazyLoader loader, @NotNull Batch b) {
+        try {
+            if (loader instanceof AsyncLazyLoader) {
+                ((AsyncLazyLoader) loader).processAsync(b.entities).whenComplete((n, t) -> complete(b, (Integer) n, (Throwable) t));
+            } else {
+                complete(b, loader.process(b.entities), null);
+            }
+        } catch (Throwable t) {
+            complete(b, null, t);
+        }
+    }
+
+    private static void complete(@NotNull Batch b, @Nullable Integer nLoaded, @Nullable Throwable t) {
+        for (Part p : b.parts) {
+            if (t != null) {
+                p.result.completeExceptionally(t);
+            } else {
+                p.result.complete(nLoaded != null && nLoaded > 0 ? p.size : 0);
+            }
+        }
+    }
+
+    /**
+     * @return среднее число вызовов registry на один вызов загрузчика
+     */
+    public double getCoalescingRatio() {
+        final long f = flushed.sum();
+        return f == 0 ? 0 : (double) submitted.sum() / f;
+    }
+
+    @Override
+    public String toString() {
+        return "LazyLoadCoalescer{" +
+            "windowMs=" + windowMs +
+            ", maxBatch=" + maxBatch +
+            ", submitted=" + submitted.sum() +
+            ", flushed=" + flushed.sum() +
+            '}';
+    }
+}
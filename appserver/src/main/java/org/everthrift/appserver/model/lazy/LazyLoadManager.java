@@ -1,5 +1,6 @@
 package org.everthrift.appserver.model.lazy;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
@@ -7,11 +8,13 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class LazyLoadManager {
 
@@ -27,31 +30,91 @@ public class LazyLoadManager {
 
     final RegistryImpl registry = new RegistryImpl();
 
-    private static final Executor loadExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
-        private final AtomicInteger threadNumber = new AtomicInteger(1);
+    /**
+     * Загрузки (вызовы load), которые еще не завершились
+     */
+    private static final AtomicInteger activeLoads = new AtomicInteger();
 
-        @NotNull
-        @Override
-        public Thread newThread(Runnable r) {
-            final Thread t = new Thread(r);
-            t.setName("LazyLoader-" + threadNumber.getAndIncrement());
-            if (t.isDaemon()) {
-                t.setDaemon(false);
-            }
-            if (t.getPriority() != Thread.NORM_PRIORITY) {
-                t.setPriority(Thread.NORM_PRIORITY);
-            }
-            return t;
-        }
-    });
+    private static final LongAdder laps = new LongAdder();
+
+    private static final LongAdder callerRuns = new LongAdder();
+
+    private static final LongAdder errors = new LongAdder();
+
+    private static final int LOAD_THREADS = Integer.getInteger("lazyload.threads", Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * Потоки для продолжения итераций загрузки. Очередь ограничена: при переполнении итерация выполняется
+     * в потоке, завершившем загрузку (degrade вместо создания новых потоков). Для AsyncLazyLoader это может
+     * быть I/O поток драйвера (Cassandra/Netty), поэтому размер очереди стоит держать с запасом
+     */
+    private static final ThreadPoolExecutor defaultLoadExecutor = new ThreadPoolExecutor(LOAD_THREADS, LOAD_THREADS, 60L, TimeUnit.SECONDS,
+                                                                                         new ArrayBlockingQueue<>(Integer.getInteger("lazyload.queue", 10000)),
+                                                                                         new ThreadFactoryBuilder().setDaemon(true)
+                                                                                                                   .setNameFormat("LazyLoader-%d")
+                                                                                                                   .build(),
+                                                                                         (r, executor) -> {
+                                                                                             callerRuns.increment();
+                                                                                             r.run();
+                                                                                         });
+
+    static {
+        defaultLoadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @NotNull
+    private static volatile Executor loadExecutor = defaultLoadExecutor;
+
+    /**
+     * Заменить executor итераций, например на пул приложения. Executor должен выполнять задачи при переполнении
+     * (CallerRunsPolicy), иначе загрузка завершится RejectedExecutionException.
+     * <p>
+     * При CallerRunsPolicy walker и следующая итерация со всеми синхронными LazyLoader выполняются в потоке,
+     * завершившем загрузку предыдущей, в том числе в I/O потоке драйвера базы (Cassandra/Netty) после
+     * AsyncLazyLoader. Блокирующие загрузчики в таком потоке останавливают все запросы соединения, поэтому
+     * очередь executor'а должна вмещать пиковое число одновременных загрузок.
+     */
+    public static void setLoadExecutor(@NotNull Executor executor) {
+        loadExecutor = executor;
+    }
+
+    @Nullable
+    private static volatile LazyLoadCoalescer coalescer;
+
+    static {
+        setCoalescing(Long.getLong("lazyload.coalesceWindowMs", 0), Integer.getInteger("lazyload.coalesceMaxBatch", 1000));
+    }
+
+    /**
+     * Включить объединение загрузок разных запросов в общие пакеты (см. {@link LazyLoadCoalescer}).
+     * Каждая итерация загрузки будет ждать до windowMs, поэтому имеет смысл только при большом числе
+     * одновременных запросов с одинаковыми загрузчиками.
+     *
+     * @param windowMs время сбора пакета, 0 - выключить
+     * @param maxBatch размер пакета, отправляемого не дожидаясь конца окна
+     */
+    public static void setCoalescing(long windowMs, int maxBatch) {
+        coalescer = windowMs > 0 ? new LazyLoadCoalescer(windowMs, maxBatch) : null;
+    }
+
+    @Nullable
+    static LazyLoadCoalescer getCoalescer() {
+        return coalescer;
+    }
 
     public static void nextLap(@NotNull CompletableFuture<Integer> result, @NotNull AtomicInteger lap, @NotNull AtomicInteger nAllLoaded, int maxIterations, Object o,
                                @NotNull Registry r, @NotNull WalkerIF walker) {
 
         log.debug("Starting load iteration: {}", lap);
         final long st = System.nanoTime();
+        laps.increment();
 
-        walker.apply(o);
+        try {
+            walker.apply(o);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
 
         r.load().handleAsync((nLoaded, t) -> {
 
@@ -74,7 +137,10 @@ public class LazyLoadManager {
             }
 
             return null;
-        } , loadExecutor);
+        } , loadExecutor).exceptionally(t -> {
+            result.completeExceptionally(t);
+            return null;
+        });
     }
 
     @NotNull
@@ -86,11 +152,45 @@ public class LazyLoadManager {
         final AtomicInteger lap = new AtomicInteger(0);
         final CompletableFuture<Integer> result = new CompletableFuture();
 
+        activeLoads.incrementAndGet();
+        result.whenComplete((n, t) -> {
+            activeLoads.decrementAndGet();
+            if (t != null) {
+                errors.increment();
+            }
+        });
+
         nextLap(result, lap, nAllLoaded, maxIterations, o, r, walker);
 
         return result;
     }
 
+    public static int getActiveLoads() {
+        return activeLoads.get();
+    }
+
+    /**
+     * @return задачи в очереди executor'а по умолчанию
+     */
+    public static int getQueueDepth() {
+        return defaultLoadExecutor.getQueue().size();
+    }
+
+    @NotNull
+    public static String getStatsString() {
+        return "LazyLoadManager{" +
+            "activeLoads=" + activeLoads.get() +
+            ", laps=" + laps.sum() +
+            ", errors=" + errors.sum() +
+            ", queueDepth=" + defaultLoadExecutor.getQueue().size() +
+            ", activeThreads=" + defaultLoadExecutor.getActiveCount() +
+            ", poolSize=" + defaultLoadExecutor.getPoolSize() +
+            ", callerRuns=" + callerRuns.sum() +
+            ", customExecutor=" + (loadExecutor != defaultLoadExecutor) +
+            ", coalescer=" + coalescer +
+            '}';
+    }
+
     public <T> CompletableFuture<T> load(final String scenario, int maxIterations, final T o) {
         return load(scenario, maxIterations, o, new Object[]{});
     }
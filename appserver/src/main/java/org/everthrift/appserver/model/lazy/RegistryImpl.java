@@ -1,27 +1,38 @@
 package org.everthrift.appserver.model.lazy;
 
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
 import com.jasongoodwin.monads.Try;
+import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Регистрация без блокировок: сущности складываются в ConcurrentLinkedQueue своего загрузчика, повторы отсекаются
+ * по ссылке на сущность ({@link #add(LazyLoader, Object)}) или по uniqueKey. Множества уникальности живут
+ * весь запрос, поэтому сущность, загруженная на одной итерации, не регистрируется повторно на следующих.
+ */
 public class RegistryImpl implements Registry {
 
     private static final Logger log = LoggerFactory.getLogger(RegistryImpl.class);
 
-    private final ArrayListMultimap<LazyLoader<?>, Object> loadList = ArrayListMultimap.create();
+    private final ConcurrentHashMap<LazyLoader<?>, ConcurrentLinkedQueue<Object>> loadList = new ConcurrentHashMap<>();
+
+    private final Set<Object> uniqSet = ConcurrentHashMap.newKeySet();
 
-    private final Set<Object> uniqSet = new HashSet<Object>();
+    /**
+     * Уникальность пар (e, null) по ссылке, без создания UniqKey
+     */
+    private final ConcurrentIdentitySet uniqEntities = new ConcurrentIdentitySet();
 
-    private Object[] args;
+    private volatile Object[] args;
 
     public RegistryImpl() {
 
@@ -32,10 +43,26 @@ public class RegistryImpl implements Registry {
     }
 
     @Override
-    public synchronized <K> boolean addWithUnique(LazyLoader<K> l, K e, Object uniqueKey) {
+    public <K> boolean addWithUnique(LazyLoader<K> l, K e, Object uniqueKey) {
 
         if (uniqSet.add(uniqueKey)) {
-            loadList.put(l, e);
+            bucket(l).add(e);
+            return true;
+        } else {
+            log.debug("skip duplicated: {}", e);
+            return false;
+        }
+    }
+
+    @Override
+    public <K> boolean add(LazyLoader<K> l, K e, Object eq) {
+        return eq == null ? add(l, e) : addWithUnique(l, e, new UniqKey(e, eq));
+    }
+
+    @Override
+    public <K> boolean add(LazyLoader<K> l, K e) {
+        if (uniqEntities.add(e)) {
+            bucket(l).add(e);
             return true;
         } else {
             log.debug("skip duplicated: {}", e);
@@ -43,32 +70,42 @@ public class RegistryImpl implements Registry {
         }
     }
 
+    @NotNull
+    private ConcurrentLinkedQueue<Object> bucket(@NotNull LazyLoader<?> l) {
+        final ConcurrentLinkedQueue<Object> q = loadList.get(l);
+        return q != null ? q : loadList.computeIfAbsent(l, k -> new ConcurrentLinkedQueue<>());
+    }
+
     @Override
-    public synchronized void clear() {
-        loadList.clear();
+    public void clear() {
+        loadList.values().forEach(ConcurrentLinkedQueue::clear);
     }
 
+    /**
+     * Забирает из очередей все, что зарегистрировано к этому моменту. Сущности, добавленные во время load(),
+     * попадут в следующую итерацию.
+     * <p>
+     * Если включен {@link LazyLoadManager#setCoalescing(long, int)}, все загрузчики вызываются через общий
+     * для узла {@link LazyLoadCoalescer} вместе с сущностями других запросов.
+     */
     @Override
     @SuppressWarnings({"rawtypes", "unchecked"})
     public CompletableFuture<Integer> load() {
 
         int nLoaded = 0;
         final List<CompletableFuture<Integer>> asyncLoaders = Lists.newArrayList();
-
-        synchronized (this) {
-            if (loadList.isEmpty()) {
-                return CompletableFuture.completedFuture(0);
-            }
-
-            for (Map.Entry<LazyLoader<?>, Collection<Object>> e : loadList.asMap().entrySet()) {
-                final List<Object> entities = (List) e.getValue();
-                if (!entities.isEmpty()) {
-
-                    if (e.getKey() instanceof AsyncLazyLoader) {
-                        asyncLoaders.add(((AsyncLazyLoader) e.getKey()).processAsync(entities));
-                    } else {
-                        nLoaded += ((LazyLoader) e.getKey()).process(entities);
-                    }
+        final LazyLoadCoalescer coalescer = LazyLoadManager.getCoalescer();
+
+        for (Map.Entry<LazyLoader<?>, ConcurrentLinkedQueue<Object>> e : loadList.entrySet()) {
+            final List<Object> entities = drain(e.getValue());
+            if (!entities.isEmpty()) {
+
+                if (coalescer != null) {
+                    asyncLoaders.add(coalescer.submit(e.getKey(), entities));
+                } else if (e.getKey() instanceof AsyncLazyLoader) {
+                    asyncLoaders.add(((AsyncLazyLoader) e.getKey()).processAsync(entities));
+                } else {
+                    nLoaded += ((LazyLoader) e.getKey()).process(entities);
                 }
             }
         }
@@ -88,6 +125,16 @@ public class RegistryImpl implements Registry {
                                 );
     }
 
+    @NotNull
+    private static List<Object> drain(@NotNull ConcurrentLinkedQueue<Object> q) {
+        final List<Object> ret = new ArrayList<>();
+        Object o;
+        while ((o = q.poll()) != null) {
+            ret.add(o);
+        }
+        return ret;
+    }
+
     @Override
     public Object[] getArgs() {
         return args;
@@ -0,0 +1,509 @@
+package org.everthrift.appserver.transport.tcp;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.everthrift.appserver.controller.ThriftOverloadException;
+import org.everthrift.appserver.controller.ThriftProcessor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Неблокирующий TCP-сервер с TFramedTransport-фреймингом.
+ * <p>
+ * Несколько selector-потоков читают и пишут фреймы, готовые фреймы обрабатываются ThriftProcessor в
+ * ограниченном пуле воркеров. Простаивающее соединение не занимает поток, в отличие от {@link ThriftServer}.
+ * <p>
+ * thrift.nio.maxInFlight задает, сколько запросов одного соединения может обрабатываться одновременно.
+ * При значении больше 1 ответы пишутся по мере готовности, и клиент сопоставляет их по seqid
+ * (см. PipelinedThriftClient в thrift-client). По умолчанию 1: запросы соединения обрабатываются
+ * последовательно, как в ThriftServer.
+ */
+public class NioThriftServer implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(NioThriftServer.class);
+
+    @Value("${thrift.port}")
+    private int port;
+
+    @Value("${thrift.host}")
+    private String host;
+
+    @Value("${thrift.nio.selectorThreads:2}")
+    private int selectorThreads = 2;
+
+    @Value("${thrift.nio.workerThreads:20}")
+    private int workerThreads = 20;
+
+    @Value("${thrift.nio.workerQueueSize:1000}")
+    private int workerQueueSize = 1000;
+
+    @Value("${thrift.nio.maxFrameSize:16384000}")
+    private int maxFrameSize = 16384000;
+
+    @Value("${thrift.nio.maxInFlight:1}")
+    private int maxInFlight = 1;
+
+    private final TProtocolFactory protocolFactory;
+
+    private final ThriftProcessor thriftProcessor;
+
+    private ServerSocketChannel serverChannel;
+
+    @Nullable
+    private Thread acceptThread;
+
+    private SelectorThread[] selectors;
+
+    private ThreadPoolExecutor workers;
+
+    private volatile boolean running = false;
+
+    public NioThriftServer(TProtocolFactory protocolFactory, ThriftProcessor thriftProcessor) {
+        this.protocolFactory = protocolFactory;
+        this.thriftProcessor = thriftProcessor;
+    }
+
+    @Override
+    public synchronized void start() {
+
+        log.info("Starting NioThriftServer on {}:{}", host, port);
+
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                                         new ArrayBlockingQueue<>(workerQueueSize),
+                                         new ThreadFactoryBuilder().setDaemon(false)
+                                                                   .setPriority(Thread.NORM_PRIORITY)
+                                                                   .setNameFormat("thrift-%d")
+                                                                   .build());
+
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(host, port));
+            // port 0 - любой свободный
+            port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+
+            selectors = new SelectorThread[selectorThreads];
+            for (int i = 0; i < selectors.length; i++) {
+                selectors[i] = new SelectorThread("thrift-selector-" + i);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        running = true;
+
+        for (SelectorThread s : selectors) {
+            s.start();
+        }
+
+        acceptThread = new Thread(this::acceptLoop);
+        acceptThread.setName("ThriftServer");
+        acceptThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (acceptThread == null) {
+            return;
+        }
+
+        running = false;
+
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+        }
+
+        try {
+            acceptThread.join();
+            for (SelectorThread s : selectors) {
+                s.selector.wakeup();
+                s.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        workers.shutdown();
+        try {
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        acceptThread = null;
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                final SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                selectors[next].addAccepted(channel);
+                next = (next + 1) % selectors.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    log.error("Exception while accepting connection", e);
+                }
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer toFrame(@NotNull TMemoryBuffer outT) {
+        final int len = outT.length();
+        final ByteBuffer buf = ByteBuffer.allocate(4 + len);
+        buf.putInt(len);
+        buf.put(outT.getArray(), 0, len);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Ответ на запрос, который не поместился в очередь воркеров. Выполняется в selector-потоке.
+     */
+    @Nullable
+    private ByteBuffer overloaded(@NotNull byte[] data) {
+        try {
+            final TMessage msg = protocolFactory.getProtocol(new TMemoryInputTransport(data)).readMessageBegin();
+            final TMemoryBuffer outT = new TMemoryBuffer(128);
+            final TProtocol out = protocolFactory.getProtocol(outT);
+            out.writeMessageBegin(new TMessage(msg.name, TMessageType.EXCEPTION, msg.seqid));
+            new ThriftOverloadException("Server overloaded").write(out);
+            out.writeMessageEnd();
+            return toFrame(outT);
+        } catch (TException e) {
+            return null;
+        }
+    }
+
+    private class SelectorThread extends Thread {
+
+        private final Selector selector;
+
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+        private final Queue<Connection> processed = new ConcurrentLinkedQueue<>();
+
+        SelectorThread(String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+        }
+
+        void addAccepted(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        void addProcessed(Connection connection) {
+            processed.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        try {
+                            final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                            key.attach(new Connection(channel, key, this));
+                        } catch (ClosedChannelException e) {
+                        }
+                    }
+
+                    Connection connection;
+                    while ((connection = processed.poll()) != null) {
+                        connection.onProcessed();
+                    }
+
+                    final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        final SelectionKey key = it.next();
+                        it.remove();
+
+                        final Connection c = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            c.close();
+                            continue;
+                        }
+
+                        try {
+                            if (key.isReadable()) {
+                                c.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                c.write();
+                            }
+                        } catch (IOException e) {
+                            log.debug("Connection closed: {}", e.getMessage());
+                            c.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Selector error", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private class Connection {
+
+        private final SocketChannel channel;
+
+        private final SelectionKey key;
+
+        private final SelectorThread selectorThread;
+
+        private final TcpConnectionContext context;
+
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+
+        @Nullable
+        private ByteBuffer frame;
+
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Число запросов в обработке, меняется только в selector-потоке
+         */
+        private int inFlight = 0;
+
+        private volatile boolean closeRequested = false;
+
+        Connection(SocketChannel channel, SelectionKey key, SelectorThread selectorThread) {
+            this.channel = channel;
+            this.key = key;
+            this.selectorThread = selectorThread;
+            this.context = new TcpConnectionContext(channel.socket());
+        }
+
+        /**
+         * selector thread
+         */
+        void read() throws IOException {
+            if (frame == null) {
+                if (channel.read(header) < 0) {
+                    close();
+                    return;
+                }
+
+                if (header.hasRemaining()) {
+                    return;
+                }
+
+                header.flip();
+                final int size = header.getInt();
+                header.clear();
+
+                if (size <= 0 || size > maxFrameSize) {
+                    log.warn("Invalid frame size {} from {}, closing connection", size, context.remoteAddress);
+                    close();
+                    return;
+                }
+
+                frame = ByteBuffer.allocate(size);
+            }
+
+            if (channel.read(frame) < 0) {
+                close();
+                return;
+            }
+
+            if (frame.hasRemaining()) {
+                return;
+            }
+
+            final byte[] data = frame.array();
+            frame = null;
+
+            // при достижении лимита чтение приостанавливается до onProcessed()
+            if (++inFlight >= maxInFlight) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+
+            try {
+                workers.execute(() -> process(data));
+            } catch (RejectedExecutionException e) {
+                final ByteBuffer reply = overloaded(data);
+                if (reply == null) {
+                    close();
+                    return;
+                }
+                writeQueue.add(reply);
+                onProcessed();
+            }
+        }
+
+        /**
+         * worker thread
+         */
+        private void process(byte[] data) {
+            final TMemoryBuffer outT = new TMemoryBuffer(1024);
+            try {
+                thriftProcessor.process(protocolFactory.getProtocol(new TMemoryInputTransport(data)),
+                                        protocolFactory.getProtocol(outT),
+                                        new HashMap<>(),
+                                        context);
+                if (outT.length() > 0) {
+                    writeQueue.add(toFrame(outT));
+                }
+            } catch (TException | RuntimeException e) {
+                log.warn("Couldn't process frame from {}: {}", context.remoteAddress, e.toString());
+                closeRequested = true;
+            } catch (Error e) {
+                log.error("Error while processing frame from {}", context.remoteAddress, e);
+                closeRequested = true;
+                throw e;
+            } finally {
+                // иначе inFlight не уменьшится и соединение перестанет читать
+                selectorThread.addProcessed(this);
+            }
+        }
+
+        /**
+         * selector thread
+         */
+        void onProcessed() {
+            if (closeRequested) {
+                close();
+                return;
+            }
+
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (inFlight-- >= maxInFlight) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * selector thread
+         */
+        void write() throws IOException {
+            ByteBuffer buf;
+            while ((buf = writeQueue.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            key.cancel();
+            frame = null;
+            writeQueue.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setSelectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public void setWorkerQueueSize(int workerQueueSize) {
+        this.workerQueueSize = workerQueueSize;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return acceptThread != null;
+    }
+
+    @Override
+    public int getPhase() {
+        return 100;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public void stop(@NotNull Runnable callback) {
+        stop();
+        callback.run();
+    }
+}
@@ -0,0 +1,63 @@
+package org.everthrift.appserver.transport.tcp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Данные TCP-соединения, которые вычисляются один раз при accept и доступны всем запросам этого соединения
+ * через атрибут {@link org.everthrift.clustering.MessageWrapper#TCP_CONNECTION}
+ */
+public class TcpConnectionContext {
+
+    private static final AtomicLong idGenerator = new AtomicLong();
+
+    public final long id;
+
+    @Nullable
+    public final SocketAddress remoteAddress;
+
+    @Nullable
+    public final SocketAddress localAddress;
+
+    @Nullable
+    public final String clientIp;
+
+    public final long connectedAt;
+
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+    public TcpConnectionContext(@Nullable SocketAddress remoteAddress, @Nullable SocketAddress localAddress) {
+        this.id = idGenerator.incrementAndGet();
+        this.remoteAddress = remoteAddress;
+        this.localAddress = localAddress;
+        this.clientIp = remoteAddress != null ? remoteAddress.toString() : null;
+        this.connectedAt = System.currentTimeMillis();
+    }
+
+    public TcpConnectionContext(@NotNull Socket socket) {
+        this(socket.getRemoteSocketAddress(), socket.getLocalSocketAddress());
+    }
+
+    /**
+     * Данные, которые контроллеры хотят хранить между запросами одного соединения
+     */
+    @NotNull
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public String toString() {
+        return "TcpConnectionContext{" +
+            "id=" + id +
+            ", remoteAddress=" + remoteAddress +
+            ", localAddress=" + localAddress +
+            '}';
+    }
+}
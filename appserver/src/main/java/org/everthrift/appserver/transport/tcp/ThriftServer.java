@@ -1,11 +1,15 @@
 package org.everthrift.appserver.transport.tcp;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.TProcessorFactory;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.server.TServer;
 import org.apache.thrift.server.TThreadPoolServer;
 import org.apache.thrift.transport.TFramedTransport;
 import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 import org.everthrift.appserver.controller.ThriftProcessor;
 import org.jetbrains.annotations.NotNull;
@@ -17,6 +21,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.SmartLifecycle;
 
 import java.net.InetSocketAddress;
+import java.util.HashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -92,7 +97,20 @@ public class ThriftServer implements SmartLifecycle {
         final TThreadPoolServer.Args args = new TThreadPoolServer.Args(trans).executorService(es);
         args.transportFactory(new TFramedTransport.Factory());
         args.protocolFactory(protocolFactory);
-        args.processor(thriftProcessor);
+        args.processorFactory(new TProcessorFactory(thriftProcessor) {
+            @Override
+            public TProcessor getProcessor(TTransport trans) {
+                // вызывается один раз на соединение
+                final TcpConnectionContext connection = trans instanceof TSocket ? new TcpConnectionContext(((TSocket) trans).getSocket()) : null;
+                return (in, out) -> {
+                    try {
+                        thriftProcessor.process(in, out, new HashMap<>(), connection);
+                    } catch (RuntimeException e) {
+                    }
+                    return true;
+                };
+            }
+        });
         server = new TThreadPoolServer(args);
         server.serve();
     }
@@ -1,8 +1,6 @@
 package org.everthrift.appserver.utils.thrift.scanner;
 
 import com.google.common.collect.Maps;
-import it.unimi.dsi.fastutil.ints.Int2ReferenceMap;
-import it.unimi.dsi.fastutil.ints.Int2ReferenceOpenHashMap;
 import javassist.CannotCompileException;
 import javassist.ClassPool;
 import javassist.CtClass;
@@ -23,6 +21,7 @@ import org.everthrift.appserver.model.lazy.LazyMethod;
 import org.everthrift.appserver.model.lazy.Registry;
 import org.everthrift.appserver.utils.thrift.ThriftUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,13 +30,31 @@ import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Map.Entry;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Генерирует сканеры TBase по паре (класс, сценарий).
+ * <p>
+ * Сканеры хранятся в таблице класса ({@link ClassValue}) по сценарию. Генерация идет без общей блокировки:
+ * первый поток, запросивший пару, кладет в таблицу future и компилирует сканер, остальные потоки ждут только
+ * этот future, а сканеры других пар генерируются параллельно.
+ * <p>
+ * Если в classpath модели уже есть класс сканера, созданный при сборке ({@link TBaseScannerGenerator}),
+ * используется он, Javassist нужен только для остальных классов.
+ */
 public class TBaseScannerFactory {
 
     private static final Logger log = LoggerFactory.getLogger(TBaseScannerFactory.class);
 
     @NotNull
-    private volatile Int2ReferenceMap<TBaseScanner> scanners = new Int2ReferenceOpenHashMap<TBaseScanner>();
+    private final ClassValue<ConcurrentHashMap<String, CompletableFuture<TBaseScanner>>> scanners = new ClassValue<ConcurrentHashMap<String, CompletableFuture<TBaseScanner>>>() {
+        @Override
+        protected ConcurrentHashMap<String, CompletableFuture<TBaseScanner>> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>(4);
+        }
+    };
 
     static enum ReturnType {
         VOID,
@@ -71,6 +88,8 @@ public class TBaseScannerFactory {
                     return "Object";
                 case LIST:
                     return "java.util.List";
+                case SET:
+                    return "java.util.Set";
                 case MAP:
                     return "java.util.Map";
                 default:
@@ -212,51 +231,92 @@ public class TBaseScannerFactory {
 
     public TBaseScanner create(@NotNull Class tModel, @NotNull String scenario) {
 
-        int key = 1;
-        key = 31 * key + scenario.hashCode();
-        key = 31 * key + System.identityHashCode(tModel);
-
-        TBaseScanner s = scanners.get(key);
-        if (s != null) {
-            return s;
+        final ConcurrentHashMap<String, CompletableFuture<TBaseScanner>> byScenario = scanners.get(tModel);
+
+        CompletableFuture<TBaseScanner> f = byScenario.get(scenario);
+        if (f == null) {
+            final CompletableFuture<TBaseScanner> nf = new CompletableFuture<>();
+            f = byScenario.putIfAbsent(scenario, nf);
+            if (f == null) {
+                f = nf;
+                try {
+                    nf.complete(_create(tModel, scenario));
+                } catch (Throwable e) {
+                    // следующий вызов попробует сгенерировать сканер заново
+                    byScenario.remove(scenario, nf);
+                    nf.completeExceptionally(e);
+                }
+            }
         }
 
-        return _create(key, tModel, scenario);
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
     }
 
-    private synchronized TBaseScanner _create(final int key, @NotNull Class tModel, String scenario) {
+    @NotNull
+    private TBaseScanner _create(@NotNull Class tModel, String scenario) {
 
-        TBaseScanner s = scanners.get(key);
-        if (s != null) {
-            return s;
+        final TBaseScanner prebuilt = loadPrebuilt(tModel, scenario);
+        if (prebuilt != null) {
+            return prebuilt;
         }
 
-        final ClassPool pool = ClassPool.getDefault();
-        final String scannerClassName = tModel.getPackage()
-                                              .getName() + "." + tModel.getSimpleName() + "Scanner_" + scenario;
-        final CtClass cc = pool.makeClass(scannerClassName);
-
         try {
-            cc.setSuperclass(pool.get(AbstractTBaseScanner.class.getName()));
-            cc.setInterfaces(new CtClass[]{pool.get(TBaseScanner.class.getName())});
-            final String code = buildScannerCode("scan", tModel, scenario);
-            log.debug("build scan code for {}: {}", tModel.getSimpleName(), code);
-            cc.addMethod(CtMethod.make(code, cc));
-            cc.addMethod(CtMethod.make("public String getGeneratedCode(){return \""
-                                           + code.replaceAll("\"", "\\\\\"").replaceAll("\n", "\\\\n") + "\";}", cc));
-
-            s = (TBaseScanner) cc.toClass(tModel.getClassLoader(), null).newInstance();
-
-            final Int2ReferenceMap<TBaseScanner> _scanners = new Int2ReferenceOpenHashMap<TBaseScanner>(scanners);
-            _scanners.put(key, s);
-            scanners = _scanners;
-            return s;
+            return (TBaseScanner) makeScannerClass(ClassPool.getDefault(), tModel, scenario).toClass(tModel.getClassLoader(), null)
+                                                                                           .newInstance();
         } catch (@NotNull CannotCompileException | NotFoundException | InstantiationException | IllegalAccessException | IOException e) {
             log.error("Exception", e);
             throw new RuntimeException(e);
         }
     }
 
+    @Nullable
+    private TBaseScanner loadPrebuilt(@NotNull Class tModel, String scenario) {
+        final ClassLoader cl = tModel.getClassLoader();
+        final String name = scannerClassName(tModel, scenario);
+
+        if (cl == null || cl.getResource(name.replace('.', '/') + ".class") == null) {
+            return null;
+        }
+
+        try {
+            final TBaseScanner s = (TBaseScanner) Class.forName(name, true, cl).newInstance();
+            log.debug("use pre-generated scanner {}", name);
+            return s;
+        } catch (@NotNull ReflectiveOperationException | ClassCastException | LinkageError e) {
+            log.warn("Couldn't load pre-generated scanner {}, generating at runtime", name, e);
+            return null;
+        }
+    }
+
+    @NotNull
+    static String scannerClassName(@NotNull Class tModel, @NotNull String scenario) {
+        return tModel.getPackage().getName() + "." + tModel.getSimpleName() + "Scanner_" + scenario;
+    }
+
+    @NotNull
+    CtClass makeScannerClass(@NotNull ClassPool pool, @NotNull Class tModel, @NotNull String scenario) throws CannotCompileException, NotFoundException, IOException {
+
+        final CtClass cc = pool.makeClass(scannerClassName(tModel, scenario));
+
+        cc.setSuperclass(pool.get(AbstractTBaseScanner.class.getName()));
+        cc.setInterfaces(new CtClass[]{pool.get(TBaseScanner.class.getName())});
+        final String code = buildScannerCode("scan", tModel, scenario);
+        log.debug("build scan code for {}: {}", tModel.getSimpleName(), code);
+        cc.addMethod(CtMethod.make(code, cc));
+        cc.addMethod(CtMethod.make("public String getGeneratedCode(){return \""
+                                       + code.replaceAll("\"", "\\\\\"").replaceAll("\n", "\\\\n") + "\";}", cc));
+        return cc;
+    }
+
     private String indent(int c, @NotNull String input) {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < c; i++) {
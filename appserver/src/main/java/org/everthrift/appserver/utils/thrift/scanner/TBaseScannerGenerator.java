@@ -0,0 +1,139 @@
+package org.everthrift.appserver.utils.thrift.scanner;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+import org.apache.thrift.TBase;
+import org.everthrift.appserver.model.lazy.LazyAccessor;
+import org.everthrift.appserver.model.lazy.LazyLoadManager;
+import org.everthrift.appserver.model.lazy.LazyMethod;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Генерация сканеров на этапе сборки: для каждого TBase и каждого класса с @LazyMethod/@LazyAccessor из classesDir
+ * записывает в classesDir классы сканеров по всем сценариям. Имена классов совпадают с теми, что
+ * {@link TBaseScannerFactory} создает в runtime, поэтому фабрика находит их в classpath и не вызывает Javassist.
+ * <p>
+ * Вызывается goal'ом generate-scanners из maven-migration-plugin через classloader проекта или напрямую
+ * через main(classesDir, packages, scenarios).
+ */
+public class TBaseScannerGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(TBaseScannerGenerator.class);
+
+    public static final List<String> DEFAULT_SCENARIOS = Collections.unmodifiableList(Arrays.asList(LazyLoadManager.SCENARIO_DEFAULT,
+                                                                                                    LazyLoadManager.SCENARIO_ADMIN,
+                                                                                                    LazyLoadManager.SCENARIO_JSON));
+
+    /**
+     * @param classesDir скомпилированные классы модуля, туда же пишутся сканеры
+     * @param packages   пакеты моделей, пустой список - все классы classesDir
+     * @param scenarios  сценарии, пустой список - {@link #DEFAULT_SCENARIOS}
+     * @return число записанных классов
+     */
+    public static int generate(@NotNull File classesDir, @NotNull List<String> packages, @NotNull List<String> scenarios) throws IOException {
+
+        final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        final ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new LoaderClassPath(cl));
+
+        final TBaseScannerFactory factory = new TBaseScannerFactory();
+        final List<String> _scenarios = scenarios.isEmpty() ? DEFAULT_SCENARIOS : scenarios;
+
+        int n = 0;
+        for (Class<?> cls : findModels(classesDir, packages, cl)) {
+            for (String scenario : _scenarios) {
+                try {
+                    final CtClass cc = factory.makeScannerClass(pool, cls, scenario);
+                    cc.writeFile(classesDir.getPath());
+                    cc.detach();
+                    n++;
+                } catch (@NotNull CannotCompileException | NotFoundException e) {
+                    throw new IOException(String.format("Couldn't generate scanner: cls=%s, scenario=%s", cls.getName(), scenario), e);
+                }
+            }
+        }
+
+        log.info("Generated {} scanners in {}", n, classesDir);
+        return n;
+    }
+
+    @NotNull
+    private static List<Class<?>> findModels(@NotNull File classesDir, @NotNull List<String> packages, @NotNull ClassLoader cl) throws IOException {
+
+        final Path root = classesDir.toPath();
+        final List<String> names;
+        try (Stream<Path> files = Files.walk(root)) {
+            names = files.map(p -> root.relativize(p).toString())
+                         .filter(p -> p.endsWith(".class") && !p.contains("$"))
+                         .map(p -> p.substring(0, p.length() - ".class".length()).replace(File.separatorChar, '.'))
+                         .filter(name -> packages.isEmpty() || packages.stream().anyMatch(pkg -> name.startsWith(pkg + ".")))
+                         .sorted()
+                         .collect(Collectors.toList());
+        }
+
+        final List<Class<?>> ret = new ArrayList<>();
+        for (String name : names) {
+            try {
+                final Class<?> cls = Class.forName(name, false, cl);
+                if (isModel(cls)) {
+                    ret.add(cls);
+                }
+            } catch (@NotNull ClassNotFoundException | LinkageError e) {
+                log.debug("skip {}: {}", name, e.toString());
+            }
+        }
+        return ret;
+    }
+
+    private static boolean isModel(@NotNull Class<?> cls) {
+        if (cls.isInterface() || Modifier.isAbstract(cls.getModifiers()) || cls.getPackage() == null
+            || TBaseScanner.class.isAssignableFrom(cls)) {
+            return false;
+        }
+
+        if (TBase.class.isAssignableFrom(cls)) {
+            return true;
+        }
+
+        for (Method m : cls.getMethods()) {
+            if (m.isAnnotationPresent(LazyMethod.class) || m.isAnnotationPresent(LazyAccessor.class)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> split(@NotNull String[] args, int i) {
+        return args.length > i && !args[i].isEmpty() ? Arrays.asList(args[i].split(",")) : Collections.emptyList();
+    }
+
+    /**
+     * args: classesDir [packages через запятую] [scenarios через запятую]
+     */
+    public static void main(@NotNull String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: TBaseScannerGenerator classesDir [package1,package2] [scenario1,scenario2]");
+            System.exit(1);
+        }
+
+        generate(new File(args[0]), split(args, 1), split(args, 2));
+    }
+}
@@ -0,0 +1,114 @@
+package org.everthrift.clustering;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Крайний срок выполнения запроса: абсолютное время в мс (System.currentTimeMillis()), после которого
+ * ответ клиенту уже не нужен.
+ * <p>
+ * Передается в атрибутах запроса под ключом {@link MessageWrapper#DEADLINE} (Long или строка), для HTTP также
+ * читается из одноименного заголовка. ThriftProcessor отклоняет просроченные запросы до создания контроллера и
+ * на время handle() кладет срок в ThreadLocal, откуда его подхватывают исходящие вызовы кластерных клиентов.
+ * Часы узлов должны быть синхронизированы.
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Long> current = new ThreadLocal<>();
+
+    private Deadline() {
+    }
+
+    /**
+     * @return срок текущего запроса или null, если он не задан
+     */
+    @Nullable
+    public static Long current() {
+        return current.get();
+    }
+
+    /**
+     * @return предыдущее значение, которое нужно вернуть через {@link #restore(Long)}
+     */
+    @Nullable
+    public static Long set(@Nullable Long deadline) {
+        final Long prev = current.get();
+        if (deadline != null) {
+            current.set(deadline);
+        } else {
+            current.remove();
+        }
+        return prev;
+    }
+
+    public static void restore(@Nullable Long prev) {
+        set(prev);
+    }
+
+    public static boolean isExpired(@Nullable Long deadline) {
+        return deadline != null && deadline <= System.currentTimeMillis();
+    }
+
+    /**
+     * @return сколько мс осталось до deadline (не меньше 0), или defaultMs, если deadline не задан
+     */
+    public static long remainingMs(@Nullable Long deadline, long defaultMs) {
+        return deadline == null ? defaultMs : Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public static Long fromAttributes(@Nullable Map<String, Object> attributes) {
+        if (attributes == null) {
+            return null;
+        }
+
+        final Long deadline = parse(attributes.get(MessageWrapper.DEADLINE));
+        if (deadline != null) {
+            return deadline;
+        }
+
+        final Map<String, String> headers = (Map<String, String>) attributes.get(MessageWrapper.HTTP_HEADERS);
+        if (headers == null) {
+            return null;
+        }
+
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            if (MessageWrapper.DEADLINE.equalsIgnoreCase(e.getKey())) {
+                return parse(e.getValue());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Добавляет в атрибуты исходящего вызова срок текущего запроса, если он задан и не указан явно
+     */
+    @Nullable
+    public static Map<String, Object> inherit(@Nullable Map<String, Object> attributes) {
+        final Long deadline = current.get();
+        if (deadline == null || (attributes != null && attributes.containsKey(MessageWrapper.DEADLINE))) {
+            return attributes;
+        }
+
+        final Map<String, Object> ret = attributes != null ? new HashMap<>(attributes) : new HashMap<>();
+        ret.put(MessageWrapper.DEADLINE, deadline);
+        return ret;
+    }
+
+    @Nullable
+    private static Long parse(@Nullable Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof String) {
+            try {
+                return Long.parseLong(((String) value).trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
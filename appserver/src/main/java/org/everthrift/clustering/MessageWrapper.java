@@ -30,6 +30,13 @@ public class MessageWrapper implements Serializable {
 
     public static String HTTP_X_REAL_IP = "X-Real-IP";
 
+    public static String TCP_CONNECTION = "TCP_CONNECTION";
+
+    /**
+     * См. {@link Deadline}
+     */
+    public static String DEADLINE = "X-Deadline";
+
     private TTransport tTransport;
 
     private Map<String, Object> attributes;
@@ -3,6 +3,8 @@ package org.everthrift.clustering.jgroups;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
+import org.everthrift.appserver.controller.ThriftDeadlineExceededException;
+import org.everthrift.clustering.Deadline;
 import org.everthrift.clustering.MessageWrapper;
 import org.everthrift.clustering.thrift.ThriftControllerDiscovery;
 import org.everthrift.thrift.ThriftCallFuture;
@@ -110,10 +112,20 @@ public abstract class AbstractJgroupsThriftClientImpl extends ClusterThriftClien
 
         final CompletableFuture<Map<Address, Reply<T>>> ret = new CompletableFuture<>();
 
+        // срок читается в потоке вызывающего контроллера, дальше продолжение может выполниться в другом потоке
+        final Map<String, Object> _attributes = Deadline.inherit(attributes);
+        final Long deadline = Deadline.fromAttributes(_attributes);
+
+        if (Deadline.isExpired(deadline)) {
+            ret.completeExceptionally(new ThriftDeadlineExceededException("Deadline exceeded before call " + tInfo.getFullMethodName()));
+            return ret;
+        }
+
         viewAccepted.whenComplete((result, t) -> {
             if (t == null) {
                 try {
-                    this.<T>_thriftCall(dest, exclusionList, isLoopback(options), getTimeout(options), getResponseMode(options), tInfo, attributes)
+                    final int timeout = (int) Math.min(getTimeout(options), Deadline.remainingMs(deadline, Integer.MAX_VALUE));
+                    this.<T>_thriftCall(dest, exclusionList, isLoopback(options), timeout, getResponseMode(options), tInfo, _attributes)
                         .whenComplete((result2, t2) -> {
                             if (t2 != null) {
                                 ret.completeExceptionally(t2);
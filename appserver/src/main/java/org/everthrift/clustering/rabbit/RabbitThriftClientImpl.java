@@ -3,8 +3,9 @@ package org.everthrift.clustering.rabbit;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.transport.TMemoryBuffer;
+import org.everthrift.clustering.Deadline;
+import org.everthrift.clustering.MessageWrapper;
 import org.everthrift.thrift.ThriftCallFuture;
-import org.everthrift.clustering.thrift.NullResult;
 import org.everthrift.clustering.thrift.ServiceIfaceProxy;
 import org.everthrift.clustering.thrift.ThriftProxyFactory;
 import org.everthrift.thrift.ThriftServicesDiscovery;
@@ -69,13 +70,26 @@ public class RabbitThriftClientImpl implements RabbitThriftClientIF {
 
         return (T) Proxy.newProxyInstance(ThriftProxyFactory.class.getClassLoader(), new Class[]{cls},
                                           new ServiceIfaceProxy(thriftServicesDiscovery, ii -> {
+                                              // отправка идет в другом потоке, срок запроса читаем здесь
+                                              final Long deadline = Deadline.current();
                                               sendExecutor.execute(() -> {
-                                                  rabbitTemplate.convertAndSend(getExchangeName(ii.thriftMethodEntry.serviceName), ii.thriftMethodEntry.methodName, ii);
+                                                  rabbitTemplate.convertAndSend(getExchangeName(ii.thriftMethodEntry.serviceName), ii.thriftMethodEntry.methodName, ii,
+                                                                                message -> setDeadline(message, deadline));
                                               });
-                                              throw new NullResult();
+                                              return ServiceIfaceProxy.NULL_RESULT;
                                           }));
     }
 
+    private static Message setDeadline(Message message, Long deadline) {
+        if (deadline != null) {
+            final MessageProperties properties = message.getMessageProperties();
+            properties.setHeader(MessageWrapper.DEADLINE, deadline);
+            // брокер сам удалит сообщение, которое не успели забрать до истечения срока
+            properties.setExpiration(Long.toString(Math.max(1, Deadline.remainingMs(deadline, 0))));
+        }
+        return message;
+    }
+
     @Override
     public String getExchangeName(String serviceName) {
         return exchangePrefix + serviceName + exchangeSuffix;
@@ -1,5 +1,13 @@
 package org.everthrift.clustering.thrift;
 
+/**
+ * Устаревший способ вернуть значение по умолчанию из {@link ServiceIfaceProxy.ServiceIfaceProxyCallback},
+ * предпочтительно возвращать {@link ServiceIfaceProxy#NULL_RESULT}
+ */
 public class NullResult extends Exception {
     private static final long serialVersionUID = 1L;
-}
\ No newline at end of file
+
+    public NullResult() {
+        super(null, null, false, false);
+    }
+}
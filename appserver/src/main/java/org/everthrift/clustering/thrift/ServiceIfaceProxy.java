@@ -15,9 +15,18 @@ public class ServiceIfaceProxy implements InvocationHandler {
     static final Logger log = LoggerFactory.getLogger(ServiceIfaceProxy.class);
 
     public interface ServiceIfaceProxyCallback {
+        /**
+         * @return результат вызова или {@link #NULL_RESULT}, если прокси должен вернуть значение по умолчанию
+         * для возвращаемого типа метода
+         */
         Object call(ThriftCallFuture ii) throws NullResult, TException;
     }
 
+    /**
+     * Возвращается из callback вместо выброса {@link NullResult}
+     */
+    public static final Object NULL_RESULT = new Object();
+
     final ThriftServicesDiscovery thriftServicesDb;
 
     final ServiceIfaceProxyCallback callback;
@@ -34,6 +43,7 @@ public class ServiceIfaceProxy implements InvocationHandler {
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
 
+        final Object ret;
         try {
             final ThriftServicesDiscovery.ThriftMethodEntry e = thriftServicesDb.getByMethod(method);
             if (e == null) {
@@ -41,28 +51,33 @@ public class ServiceIfaceProxy implements InvocationHandler {
             }
 
             final TBase _args = e.argsConstructor.newInstance(args);
-            return callback.call(new ThriftCallFuture(e, _args));
+            ret = callback.call(new ThriftCallFuture(e, _args));
         } catch (NullResult e) {
-            final Class rt = method.getReturnType();
-            if (rt == Boolean.TYPE) {
-                return false;
-            } else if (rt == Character.TYPE) {
-                return ' ';
-            } else if (rt == Byte.TYPE) {
-                return (byte) 0;
-            } else if (rt == Short.TYPE) {
-                return (short) 0;
-            } else if (rt == Integer.TYPE) {
-                return 0;
-            } else if (rt == Long.TYPE) {
-                return (long) 0;
-            } else if (rt == Float.TYPE) {
-                return 0f;
-            } else if (rt == Double.TYPE) {
-                return (double) 0;
-            } else {
-                return null;
-            }
+            return defaultValue(method.getReturnType());
+        }
+
+        return ret == NULL_RESULT ? defaultValue(method.getReturnType()) : ret;
+    }
+
+    private static Object defaultValue(Class rt) {
+        if (rt == Boolean.TYPE) {
+            return false;
+        } else if (rt == Character.TYPE) {
+            return ' ';
+        } else if (rt == Byte.TYPE) {
+            return (byte) 0;
+        } else if (rt == Short.TYPE) {
+            return (short) 0;
+        } else if (rt == Integer.TYPE) {
+            return 0;
+        } else if (rt == Long.TYPE) {
+            return (long) 0;
+        } else if (rt == Float.TYPE) {
+            return 0f;
+        } else if (rt == Double.TYPE) {
+            return (double) 0;
+        } else {
+            return null;
         }
     }
 
@@ -12,6 +12,7 @@ import org.apache.curator.x.discovery.UriSpec;
 import org.apache.curator.x.discovery.details.JsonInstanceSerializer;
 import org.everthrift.appserver.BeanDefinitionHolder;
 import org.everthrift.appserver.controller.ConnectionStateHandler;
+import org.everthrift.appserver.controller.StatelessThriftController;
 import org.everthrift.appserver.controller.ThriftController;
 import org.everthrift.appserver.controller.ThriftControllerInfo;
 import org.everthrift.appserver.jgroups.RpcJGroups;
@@ -22,6 +23,7 @@ import org.everthrift.appserver.transport.websocket.RpcWebsocket;
 import org.everthrift.thrift.ThriftServicesDiscovery;
 import org.everthrift.utils.Pair;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jgroups.Address;
 import org.jgroups.JChannel;
 import org.jgroups.util.UUID;
@@ -111,6 +113,20 @@ public class ThriftControllerDiscovery implements SmartLifecycle {
         }
     }
 
+    @Nullable
+    private static Class getBeanCls(@NotNull BeanDefinition beanDefinition) {
+        if (beanDefinition.getBeanClassName() != null) {
+            try {
+                return Class.forName(beanDefinition.getBeanClassName());
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        } else if (beanDefinition.getSource() instanceof StandardMethodMetadata) {
+            return ((StandardMethodMetadata) beanDefinition.getSource()).getIntrospectedMethod().getReturnType();
+        }
+        return null;
+    }
+
     private Class getArgsCls(@NotNull Class cls) {
         for (Method m : cls.getMethods()) {
             if (m.getName().equals("setup") && m.getParameterTypes().length == 1 && !m.isBridge()) {
@@ -235,32 +251,35 @@ public class ThriftControllerDiscovery implements SmartLifecycle {
             final BeanDefinition beanDefinition = beanDefinitionHolder.getBeanDefinitionRegistry()
                                                                       .getBeanDefinition(beanName);
 
-            if (beanDefinition.isPrototype()) {
+            final Class beanCls = getBeanCls(beanDefinition);
 
-                Class beanCls = null;
-                if (beanDefinition.getBeanClassName() != null) {
-                    try {
-                        beanCls = Class.forName(beanDefinition.getBeanClassName());
-                    } catch (ClassNotFoundException e) {
-                    }
-                } else if (beanDefinition.getSource() instanceof StandardMethodMetadata) {
-                    beanCls = ((StandardMethodMetadata) beanDefinition.getSource()).getIntrospectedMethod()
-                                                                                   .getReturnType();
+            if (beanCls == null) {
+                continue;
+            }
+
+            // Rpc*-аннотации задают prototype scope, поэтому StatelessThriftController регистрируется при любом scope:
+            // ThriftProcessor все равно получает бин один раз
+            if (StatelessThriftController.class.isAssignableFrom(beanCls)) {
+
+                final Class argsCls = StatelessThriftController.getArgsCls(beanCls);
+                final Pair<String, String> methodName = argsCls != null ? extractMethodName(argsCls) : null;
+
+                if (methodName != null) {
+                    registerController(checkAnnotations(beanCls, rpcAnnotations), beanName, beanCls, methodName.first + ":" + methodName.second);
                 }
+            } else if (beanDefinition.isPrototype()) {
 
-                if (beanCls != null) {
-                    if (ThriftController.class.isAssignableFrom(beanCls)) {
+                if (ThriftController.class.isAssignableFrom(beanCls)) {
 
-                        final Pair<String, String> methodName = extractMethodName(getArgsCls(beanCls));
+                    final Pair<String, String> methodName = extractMethodName(getArgsCls(beanCls));
 
-                        if (methodName != null) {
-                            registerController(checkAnnotations(beanCls, rpcAnnotations), beanName, beanCls, methodName.first + ":" + methodName.second);
-                        }
+                    if (methodName != null) {
+                        registerController(checkAnnotations(beanCls, rpcAnnotations), beanName, beanCls, methodName.first + ":" + methodName.second);
+                    }
 
-                    } else if (ConnectionStateHandler.class.isAssignableFrom(beanCls)) {
-                        for (String a : checkAnnotations(beanCls, rpcAnnotations)) {
-                            stateHandlers.put(a, beanCls);
-                        }
+                } else if (ConnectionStateHandler.class.isAssignableFrom(beanCls)) {
+                    for (String a : checkAnnotations(beanCls, rpcAnnotations)) {
+                        stateHandlers.put(a, beanCls);
                     }
                 }
             }
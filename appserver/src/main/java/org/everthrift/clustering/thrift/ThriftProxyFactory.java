@@ -22,7 +22,7 @@ public class ThriftProxyFactory {
         return (T) Proxy.newProxyInstance(ThriftProxyFactory.class.getClassLoader(), new Class[]{cls},
                                           new ServiceIfaceProxy(thriftServicesDb, ii -> {
                                               ThriftCallFutureHolder.thriftCallFuture.set(ii);
-                                              throw new NullResult();
+                                              return ServiceIfaceProxy.NULL_RESULT;
                                           }));
     }
 
@@ -0,0 +1,175 @@
+package org.everthrift.appserver.model;
+
+import com.google.common.collect.ImmutableSet;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CachedModelFactorySingleFlightTest {
+
+    /**
+     * Первый запрос в базу ждет release, остальные выполняются сразу
+     */
+    private static class BlockingFactory extends AbstractCachedModelFactory<Long, String, RuntimeException> {
+
+        final AtomicInteger fetched = new AtomicInteger();
+
+        final Map<Long, String> db = new ConcurrentHashMap<>();
+
+        final CountDownLatch fetchStarted = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingFactory(Cache<Long, String> cache) {
+            super(cache, ReadMode.SHARED);
+        }
+
+        @Nullable
+        @Override
+        protected String fetchEntityById(@NotNull Long id) {
+            final String v = db.get(id);
+            if (fetched.incrementAndGet() == 1) {
+                fetchStarted.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return v;
+        }
+
+        @NotNull
+        @Override
+        protected Map<Long, String> fetchEntityByIdAsMap(@NotNull Set<Long> ids) {
+            final Map<Long, String> ret = new HashMap<>();
+            for (Long id : ids) {
+                ret.put(id, fetchEntityById(id));
+            }
+            return ret;
+        }
+
+        @Override
+        public Class<String> getEntityClass() {
+            return String.class;
+        }
+
+        @Override
+        public RuntimeException createNotFoundException(@Nullable Long id) {
+            return new IllegalArgumentException("not found: " + id);
+        }
+    }
+
+    private EmbeddedCacheManager cm;
+
+    private BlockingFactory factory;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        cm = new DefaultCacheManager();
+        cm.defineConfiguration("local", new ConfigurationBuilder().build());
+        factory = new BlockingFactory(cm.getCache("local"));
+        factory.db.put(1L, "v1");
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        factory.release.countDown();
+        executor.shutdownNow();
+        cm.stop();
+    }
+
+    private void awaitCoalesced(long expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (factory.getCacheStats().coalesced.sum() < expected) {
+            assertTrue("waiters didn't join the load", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneFetch() throws Exception {
+        final int nReaders = 8;
+        final long coalesced = factory.getCacheStats().coalesced.sum();
+
+        final List<Future<String>> results = new ArrayList<>();
+        results.add(executor.submit(() -> factory.findEntityById(1L)));
+        assertTrue(factory.fetchStarted.await(10, TimeUnit.SECONDS));
+
+        for (int i = 1; i < nReaders; i++) {
+            results.add(executor.submit(() -> factory.findEntityById(1L)));
+        }
+        awaitCoalesced(coalesced + nReaders - 1);
+
+        factory.release.countDown();
+        for (Future<String> f : results) {
+            assertEquals("v1", f.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, factory.fetched.get());
+        assertEquals("v1", factory.findEntityById(1L));
+        assertEquals(1, factory.fetched.get());
+    }
+
+    @Test
+    public void testReadAfterInvalidateDoesNotJoinOlderFetch() throws Exception {
+        final Future<String> before = executor.submit(() -> factory.findEntityById(1L));
+        assertTrue(factory.fetchStarted.await(10, TimeUnit.SECONDS));
+
+        // запись в базу и инвалидация, пока первая загрузка еще читает старое значение
+        factory.db.put(1L, "v2");
+        factory.invalidate(1L, AbstractCachedModelFactory.InvalidateCause.UPDATE);
+
+        assertEquals("v2", factory.findEntityById(1L));
+        assertEquals(2, factory.fetched.get());
+
+        factory.release.countDown();
+        assertEquals("v1", before.get(10, TimeUnit.SECONDS));
+
+        // значение старой загрузки не попало в кеш
+        assertEquals("v2", factory.findEntityById(1L));
+        assertEquals(2, factory.fetched.get());
+    }
+
+    @Test
+    public void testBatchReadAfterInvalidateDoesNotJoinOlderFetch() throws Exception {
+        factory.db.put(2L, "w1");
+
+        final Future<String> before = executor.submit(() -> factory.findEntityById(1L));
+        assertTrue(factory.fetchStarted.await(10, TimeUnit.SECONDS));
+
+        factory.db.put(1L, "v2");
+        factory.invalidate(1L, AbstractCachedModelFactory.InvalidateCause.UPDATE);
+
+        final Map<Long, String> all = factory.findEntityByIdAsMap(ImmutableSet.of(1L, 2L));
+        assertEquals("v2", all.get(1L));
+        assertEquals("w1", all.get(2L));
+
+        factory.release.countDown();
+        assertEquals("v1", before.get(10, TimeUnit.SECONDS));
+    }
+}
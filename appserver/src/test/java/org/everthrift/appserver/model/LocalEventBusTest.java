@@ -0,0 +1,107 @@
+package org.everthrift.appserver.model;
+
+import com.google.common.eventbus.Subscribe;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LocalEventBusTest {
+
+    /**
+     * Executor, выполняющий задачи только по команде теста
+     */
+    private static class ManualExecutor implements Executor {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable r;
+            while ((r = tasks.poll()) != null) {
+                r.run();
+            }
+        }
+    }
+
+    private static LocalEventBus create(ManualExecutor executor, int capacity) {
+        final LocalEventBus bus = new LocalEventBus();
+        bus.setExecutor(executor);
+        bus.setPartitions(1);
+        bus.setQueueCapacity(capacity);
+        bus.setOfferTimeoutMs(10);
+        bus.afterPropertiesSet();
+        return bus;
+    }
+
+    @Test
+    public void testBoundedQueue() {
+        final ManualExecutor executor = new ManualExecutor();
+        final LocalEventBus bus = create(executor, 4);
+
+        final List<Integer> received = new ArrayList<>();
+        bus.register(new Object() {
+            @Subscribe
+            public void on(Integer e) {
+                received.add(e);
+            }
+        });
+
+        for (int i = 0; i < 4; i++) {
+            bus.postAsync("key", i);
+        }
+        assertEquals(4, bus.getQueueDepth());
+
+        try {
+            bus.postAsync("key", 4);
+            fail("queue is full");
+        } catch (RejectedExecutionException e) {
+            // ok
+        }
+
+        executor.runAll();
+        assertEquals(Arrays.asList(0, 1, 2, 3), received);
+        assertEquals(0, bus.getQueueDepth());
+
+        bus.postAsync("key", 5);
+        executor.runAll();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 5), received);
+    }
+
+    @Test
+    public void testReentrantPostKeepsOrder() {
+        final ManualExecutor executor = new ManualExecutor();
+        final LocalEventBus bus = create(executor, 2);
+
+        final List<String> received = new ArrayList<>();
+        bus.register(new Object() {
+            @Subscribe
+            public void on(String e) {
+                received.add(e);
+                if (e.length() == 1) {
+                    // подписчик пишет в свою же заполненную очередь
+                    bus.postAsync("key", e + "1");
+                    bus.postAsync("key", e + "2");
+                }
+            }
+        });
+
+        bus.postAsync("key", "a");
+        bus.postAsync("key", "b");
+        executor.runAll();
+
+        assertEquals(Arrays.asList("a", "b", "a1", "a2", "b1", "b2"), received);
+        assertEquals(0, bus.getQueueDepth());
+    }
+}
@@ -0,0 +1,149 @@
+package org.everthrift.appserver.model;
+
+import com.google.common.collect.ImmutableSet;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.StorageType;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapCachesTest {
+
+    private static class TestFactory extends AbstractCachedModelFactory<Long, String, RuntimeException> {
+
+        final AtomicInteger fetched = new AtomicInteger();
+
+        final Map<Long, String> db = new HashMap<>();
+
+        TestFactory(Cache<Long, String> cache) {
+            super(cache, ReadMode.SHARED);
+        }
+
+        @Nullable
+        @Override
+        protected String fetchEntityById(@NotNull Long id) {
+            fetched.incrementAndGet();
+            final String v = db.get(id);
+            // каждый раз новый объект, как после запроса в базу
+            return v == null ? null : new String(v);
+        }
+
+        @NotNull
+        @Override
+        protected Map<Long, String> fetchEntityByIdAsMap(@NotNull Set<Long> ids) {
+            final Map<Long, String> ret = new HashMap<>();
+            for (Long id : ids) {
+                ret.put(id, fetchEntityById(id));
+            }
+            return ret;
+        }
+
+        @Override
+        public Class<String> getEntityClass() {
+            return String.class;
+        }
+
+        @Override
+        public RuntimeException createNotFoundException(@Nullable Long id) {
+            return new IllegalArgumentException("not found: " + id);
+        }
+    }
+
+    private EmbeddedCacheManager cm;
+
+    private TestFactory factory;
+
+    @Before
+    public void setUp() {
+        cm = new DefaultCacheManager();
+        factory = new TestFactory(OffHeapCaches.getOrCreate(cm, "offheap", 1024 * 1024));
+        factory.db.put(1L, "v1");
+        factory.db.put(3L, "v3");
+    }
+
+    @After
+    public void tearDown() {
+        cm.stop();
+    }
+
+    @Test
+    public void testOffHeapRoundTrip() {
+        assertEquals(StorageType.OFF_HEAP, factory.getCache().getCacheConfiguration().memory().storageType());
+
+        final String first = factory.findEntityById(1L);
+        final String second = factory.findEntityById(1L);
+        assertEquals("v1", first);
+        assertEquals("v1", second);
+        assertEquals(1, factory.fetched.get());
+        // off-heap кеш каждый раз десериализует новый объект
+        assertNotSame(first, second);
+
+        assertNull(factory.findEntityById(2L));
+        assertNull(factory.findEntityById(2L));
+        assertEquals(2, factory.fetched.get());
+
+        final Map<Long, String> all = factory.findEntityByIdAsMap(ImmutableSet.of(1L, 2L, 3L));
+        assertEquals("v1", all.get(1L));
+        assertTrue(all.containsKey(2L));
+        assertNull(all.get(2L));
+        assertEquals("v3", all.get(3L));
+        assertEquals(3, factory.fetched.get());
+    }
+
+    @Test
+    public void testHotTier() {
+        factory.setHotTier(100, 60000);
+
+        final String first = factory.findEntityById(1L);
+        final String second = factory.findEntityById(1L);
+        assertEquals("v1", first);
+        assertSame(first, second);
+        assertEquals(1, factory.fetched.get());
+
+        final Map<Long, String> all = factory.findEntityByIdAsMap(ImmutableSet.of(1L, 2L, 3L));
+        assertSame(first, all.get(1L));
+        assertNull(all.get(2L));
+        assertEquals("v3", all.get(3L));
+        assertEquals(3, factory.fetched.get());
+
+        final Map<Long, String> again = factory.findEntityByIdAsMap(ImmutableSet.of(1L, 2L, 3L));
+        assertSame(all.get(3L), again.get(3L));
+        assertEquals(3, factory.fetched.get());
+    }
+
+    @Test
+    public void testInvalidate() {
+        factory.setHotTier(100, 60000);
+
+        assertEquals("v1", factory.findEntityById(1L));
+        assertNull(factory.findEntityById(4L));
+
+        factory.db.put(1L, "v1.1");
+        factory.db.put(4L, "v4");
+        factory.invalidate(ImmutableSet.of(1L, 4L), AbstractCachedModelFactory.InvalidateCause.UNKNOWN);
+
+        assertEquals("v1.1", factory.findEntityById(1L));
+        assertEquals("v4", factory.findEntityById(4L));
+        assertEquals(4, factory.fetched.get());
+
+        // сторонняя запись в основной кеш снимает ключ с hot tier
+        factory.getCache().put(1L, "v1.2");
+        assertEquals("v1.2", factory.findEntityById(1L));
+        assertEquals(4, factory.fetched.get());
+    }
+}
@@ -0,0 +1,52 @@
+package org.everthrift.appserver.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OptimisticRetryPolicyTest {
+
+    @Test
+    public void testDelayBounds() {
+        final OptimisticRetryPolicy policy = new OptimisticRetryPolicy(10, 2, 100);
+
+        for (int attempt = 1; attempt <= 64; attempt++) {
+            final long cap = Math.min(100, 2L << Math.min(attempt - 1, 30));
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                final long d = policy.delayMs(attempt);
+                assertTrue("attempt " + attempt + ": " + d, d >= 0 && d <= cap);
+                max = Math.max(max, d);
+            }
+            assertTrue("attempt " + attempt + " never reaches the upper half", max > cap / 2);
+        }
+    }
+
+    @Test
+    public void testNoOverflowOnLargeAttempts() {
+        final OptimisticRetryPolicy policy = new OptimisticRetryPolicy(10, 1000, Long.MAX_VALUE);
+        for (int attempt : new int[]{31, 32, 63, 64, Integer.MAX_VALUE}) {
+            final long d = policy.delayMs(attempt);
+            assertTrue("attempt " + attempt + ": " + d, d >= 0 && d <= 1000L << 30);
+        }
+    }
+
+    @Test
+    public void testZeroDelay() {
+        final OptimisticRetryPolicy policy = new OptimisticRetryPolicy(5, 0, 0);
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            assertEquals(0, policy.delayMs(attempt));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxBelowBase() {
+        new OptimisticRetryPolicy(5, 10, 5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoIterations() {
+        new OptimisticRetryPolicy(0, 0, 0);
+    }
+}
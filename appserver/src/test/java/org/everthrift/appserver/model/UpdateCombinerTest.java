@@ -0,0 +1,293 @@
+package org.everthrift.appserver.model;
+
+import org.apache.thrift.TException;
+import org.everthrift.appserver.model.pgsql.OptimisticUpdateFailException;
+import org.everthrift.thrift.TFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UpdateCombinerTest {
+
+    private static class Counter implements DaoEntityIF {
+        Long id;
+
+        int value;
+
+        Counter(Long id, int value) {
+            this.id = id;
+            this.value = value;
+        }
+
+        @Override
+        public Serializable getPk() {
+            return id;
+        }
+
+        @Override
+        public void setPk(Serializable identifier) {
+            id = (Long) identifier;
+        }
+    }
+
+    /**
+     * Хранит одну запись. Mutator'ы применяются к копии, запись происходит, только если все они отработали.
+     * Первый вызов ждет release, чтобы остальные участники успели встать в очередь.
+     */
+    private static class FakeUpdater implements UpdateCombiner.Updater<Long, Counter> {
+
+        volatile int stored;
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final AtomicInteger writes = new AtomicInteger();
+
+        /**
+         * Номер текущего вызова update, mutator'ы запоминают его, чтобы проверить, кто с кем объединен
+         */
+        volatile int currentCall;
+
+        final List<EntityFactory<Long, Counter>> factories = new CopyOnWriteArrayList<>();
+
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Nullable
+        volatile RuntimeException writeError;
+
+        @NotNull
+        @Override
+        public OptResult<Counter> update(@NotNull Long id, @NotNull TFunction<Counter, Boolean> mutator,
+                                         @Nullable EntityFactory<Long, Counter> factory) throws TException {
+            final int call = calls.incrementAndGet();
+            currentCall = call;
+            factories.add(factory);
+            if (call == 1) {
+                entered.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new TException(e);
+                }
+            }
+
+            final Counter before = new Counter(id, stored);
+            final Counter after = new Counter(id, stored);
+            final boolean changed = mutator.apply(after);
+
+            if (call > 1 && writeError != null) {
+                throw writeError;
+            }
+
+            stored = after.value;
+            writes.incrementAndGet();
+            return OptResult.create(null, after, before, changed, false, 0);
+        }
+    }
+
+    private UpdateCombiner<Long, Counter> combiner;
+
+    private FakeUpdater updater;
+
+    private ExecutorService executor;
+
+    private final EntityFactory<Long, Counter> factoryA = id -> new Counter(id, 0);
+
+    private final EntityFactory<Long, Counter> factoryB = id -> new Counter(id, 0);
+
+    private final ModelCacheStats stats = ModelCacheStats.get("UpdateCombinerTest");
+
+    @Before
+    public void setUp() {
+        stats.reset();
+        combiner = new UpdateCombiner<>(stats);
+        updater = new FakeUpdater();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        updater.release.countDown();
+        executor.shutdownNow();
+    }
+
+    private TFunction<Counter, Boolean> add(int delta, @Nullable Map<Integer, Integer> seenInCall) {
+        return e -> {
+            if (seenInCall != null) {
+                seenInCall.put(delta, updater.currentCall);
+            }
+            e.value += delta;
+            return true;
+        };
+    }
+
+    private Future<OptResult<Counter>> submit(TFunction<Counter, Boolean> mutator, EntityFactory<Long, Counter> factory) {
+        return executor.submit(() -> combiner.update(1L, mutator, factory, updater));
+    }
+
+    /**
+     * Занимает ключ первым обновлением, ставит остальные в очередь за ним и отпускает первое
+     */
+    @NotNull
+    private List<Future<OptResult<Counter>>> runBehindBlocked(@NotNull List<TFunction<Counter, Boolean>> mutators,
+                                                             @NotNull List<EntityFactory<Long, Counter>> factories) throws Exception {
+        final Future<OptResult<Counter>> first = submit(add(1000, null), factoryA);
+        assertTrue(updater.entered.await(5, TimeUnit.SECONDS));
+
+        final List<Future<OptResult<Counter>>> ret = new ArrayList<>();
+        for (int i = 0; i < mutators.size(); i++) {
+            ret.add(submit(mutators.get(i), factories.get(i)));
+        }
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (combiner.pending(1L) < mutators.size()) {
+            assertTrue("updates were not queued", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        updater.release.countDown();
+        assertEquals(1000, first.get(5, TimeUnit.SECONDS).afterUpdate.value);
+        return ret;
+    }
+
+    @Test
+    public void testConcurrentUpdatesShareOneWrite() throws Exception {
+        final int n = 8;
+        final List<TFunction<Counter, Boolean>> mutators = new ArrayList<>();
+        final List<EntityFactory<Long, Counter>> factories = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            mutators.add(add(i, null));
+            factories.add(factoryA);
+        }
+
+        final List<Future<OptResult<Counter>>> results = runBehindBlocked(mutators, factories);
+
+        final OptResult<Counter> r = results.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<OptResult<Counter>> f : results) {
+            assertSame(r, f.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(2, updater.writes.get());
+        assertEquals(1000, r.beforeUpdate.value);
+        assertEquals(1000 + n * (n + 1) / 2, r.afterUpdate.value);
+        assertEquals(1000 + n * (n + 1) / 2, updater.stored);
+        assertEquals(n - 1, stats.combinedUpdates.sum());
+        assertEquals(0, combiner.activeKeys());
+    }
+
+    @Test
+    public void testDifferentFactoriesAreNotMerged() throws Exception {
+        final Map<Integer, Integer> seenInCall = new ConcurrentHashMap<>();
+        final List<TFunction<Counter, Boolean>> mutators = new ArrayList<>();
+        final List<EntityFactory<Long, Counter>> factories = new ArrayList<>();
+        for (int i = 1; i <= 6; i++) {
+            mutators.add(add(i, seenInCall));
+            factories.add(i % 2 == 0 ? factoryA : factoryB);
+        }
+
+        final List<Future<OptResult<Counter>>> results = runBehindBlocked(mutators, factories);
+        for (Future<OptResult<Counter>> f : results) {
+            f.get(5, TimeUnit.SECONDS);
+        }
+
+        // Первый вызов и по одному на каждую factory
+        assertEquals(3, updater.calls.get());
+        assertEquals(1000 + 21, updater.stored);
+
+        for (int i = 1; i <= 6; i++) {
+            final int call = seenInCall.get(i);
+            assertSame("delta " + i, factories.get(i - 1), updater.factories.get(call - 1));
+        }
+
+        final Set<Integer> calls = new HashSet<>(seenInCall.values());
+        assertEquals(2, calls.size());
+        assertEquals(0, combiner.activeKeys());
+    }
+
+    @Test
+    public void testMutatorFailureIsRetriedPerCaller() throws Exception {
+        final List<TFunction<Counter, Boolean>> mutators = new ArrayList<>();
+        mutators.add(add(1, null));
+        mutators.add(e -> {
+            throw new TException("bad mutator");
+        });
+        mutators.add(add(2, null));
+
+        final List<EntityFactory<Long, Counter>> factories = new ArrayList<>();
+        for (int i = 0; i < mutators.size(); i++) {
+            factories.add(factoryA);
+        }
+
+        final List<Future<OptResult<Counter>>> results = runBehindBlocked(mutators, factories);
+
+        final OptResult<Counter> r1 = results.get(0).get(5, TimeUnit.SECONDS);
+        final OptResult<Counter> r3 = results.get(2).get(5, TimeUnit.SECONDS);
+        try {
+            results.get(1).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TException);
+            assertEquals("bad mutator", e.getCause().getMessage());
+        }
+
+        // Первый вызов, неудачный общий и три по одному
+        assertEquals(5, updater.calls.get());
+        assertEquals(3, updater.writes.get());
+        assertEquals(1001, r1.afterUpdate.value);
+        assertEquals(1003, r3.afterUpdate.value);
+        assertEquals(1003, updater.stored);
+        assertEquals(0, combiner.activeKeys());
+    }
+
+    @Test
+    public void testWriteFailureIsDeliveredToEveryone() throws Exception {
+        final OptimisticUpdateFailException error = new OptimisticUpdateFailException();
+        updater.writeError = error;
+
+        final List<TFunction<Counter, Boolean>> mutators = new ArrayList<>();
+        final List<EntityFactory<Long, Counter>> factories = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            mutators.add(add(i, null));
+            factories.add(factoryA);
+        }
+
+        final List<Future<OptResult<Counter>>> results = runBehindBlocked(mutators, factories);
+        for (Future<OptResult<Counter>> f : results) {
+            try {
+                f.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertSame(error, e.getCause());
+            }
+        }
+
+        // Запись не повторяется по одному
+        assertEquals(2, updater.calls.get());
+        assertEquals(1000, updater.stored);
+        assertEquals(0, combiner.activeKeys());
+    }
+}
@@ -0,0 +1,94 @@
+package org.everthrift.appserver.model.lazy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentIdentitySetTest {
+
+    @Test
+    public void testIdentity() {
+        final ConcurrentIdentitySet set = new ConcurrentIdentitySet();
+        final String a = new String("a");
+        final String b = new String("a");
+
+        assertTrue(set.add(a));
+        assertFalse(set.add(a));
+        assertTrue(set.add(b));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void testResize() {
+        final ConcurrentIdentitySet set = new ConcurrentIdentitySet(16);
+        final List<Object> objects = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            final Object o = new Object();
+            objects.add(o);
+            assertTrue(set.add(o));
+        }
+
+        for (Object o : objects) {
+            assertFalse(set.add(o));
+        }
+        assertEquals(objects.size(), set.size());
+    }
+
+    /**
+     * Все потоки добавляют одни и те же объекты, начиная с маленькой таблицы, чтобы add() шли параллельно
+     * с переносами: каждый объект должен быть добавлен ровно одним потоком
+     */
+    @Test
+    public void testConcurrentAdd() throws InterruptedException {
+        final int nThreads = 8;
+        final int nObjects = 50000;
+
+        for (int round = 0; round < 10; round++) {
+            final ConcurrentIdentitySet set = new ConcurrentIdentitySet(16);
+            final Object[] objects = new Object[nObjects];
+            for (int i = 0; i < nObjects; i++) {
+                objects[i] = new Object();
+            }
+
+            final AtomicInteger added = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Thread> threads = new ArrayList<>();
+
+            for (int t = 0; t < nThreads; t++) {
+                final int offset = t * nObjects / nThreads;
+                final Thread th = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < nObjects; i++) {
+                        if (set.add(objects[(i + offset) % nObjects])) {
+                            added.incrementAndGet();
+                        }
+                    }
+                });
+                th.start();
+                threads.add(th);
+            }
+
+            start.countDown();
+            for (Thread th : threads) {
+                th.join();
+            }
+
+            assertEquals(nObjects, added.get());
+            assertEquals(nObjects, set.size());
+            for (Object o : objects) {
+                assertFalse(set.add(o));
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.everthrift.appserver.transport.tcp;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.everthrift.appserver.controller.ThriftOverloadException;
+import org.everthrift.appserver.controller.ThriftProcessor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Запросы и ответы через loopback-соединение. Имя метода задает поведение обработчика:
+ * "sleep:N" - ответ через N мс, "block" - ответ после release, "error" - обработчик бросает Error
+ */
+public class NioThriftServerTest {
+
+    private static class FakeProcessor extends ThriftProcessor {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        FakeProcessor() {
+            super(RpcSyncTcp.class);
+        }
+
+        @Nullable
+        @Override
+        public Object process(@NotNull TProtocol inp, @NotNull TProtocol out, @Nullable Map<String, Object> attributes,
+                              @Nullable TcpConnectionContext connection) throws TException {
+            final TMessage msg = inp.readMessageBegin();
+            inp.readMessageEnd();
+
+            try {
+                if (msg.name.startsWith("sleep:")) {
+                    Thread.sleep(Long.parseLong(msg.name.substring("sleep:".length())));
+                } else if (msg.name.equals("block")) {
+                    release.await(10, TimeUnit.SECONDS);
+                } else if (msg.name.equals("error")) {
+                    throw new AssertionError("controller error");
+                }
+            } catch (InterruptedException e) {
+                throw new TException(e);
+            }
+
+            out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+            out.writeMessageEnd();
+            return null;
+        }
+    }
+
+    private final FakeProcessor processor = new FakeProcessor();
+
+    private NioThriftServer server;
+
+    private Socket socket;
+
+    private void start(int workerThreads, int workerQueueSize, int maxInFlight) throws IOException {
+        server = new NioThriftServer(new TBinaryProtocol.Factory(), processor);
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        server.setSelectorThreads(1);
+        server.setWorkerThreads(workerThreads);
+        server.setWorkerQueueSize(workerQueueSize);
+        server.setMaxInFlight(maxInFlight);
+        server.start();
+
+        socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(10000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        processor.release.countDown();
+        if (socket != null) {
+            socket.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private void send(String name, int seqid) throws Exception {
+        final TMemoryBuffer buf = new TMemoryBuffer(64);
+        final TProtocol p = new TBinaryProtocol(buf);
+        p.writeMessageBegin(new TMessage(name, TMessageType.CALL, seqid));
+        p.writeMessageEnd();
+
+        final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(buf.length());
+        out.write(buf.getArray(), 0, buf.length());
+        out.flush();
+    }
+
+    @NotNull
+    private TMessage receive(@Nullable TApplicationException[] exception) throws Exception {
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        final byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+
+        final TProtocol p = new TBinaryProtocol(new TMemoryInputTransport(data));
+        final TMessage msg = p.readMessageBegin();
+        if (msg.type == TMessageType.EXCEPTION && exception != null) {
+            exception[0] = new TApplicationException();
+            exception[0].read(p);
+        }
+        return msg;
+    }
+
+    @Test
+    public void testInOrderReplies() throws Exception {
+        start(4, 100, 1);
+
+        send("sleep:100", 1);
+        send("sleep:0", 2);
+        send("sleep:0", 3);
+
+        assertEquals(1, receive(null).seqid);
+        assertEquals(2, receive(null).seqid);
+        assertEquals(3, receive(null).seqid);
+    }
+
+    @Test
+    public void testOutOfOrderReplies() throws Exception {
+        start(4, 100, 4);
+
+        send("sleep:300", 1);
+        send("sleep:0", 2);
+
+        final TMessage first = receive(null);
+        final TMessage second = receive(null);
+        assertEquals(2, first.seqid);
+        assertEquals(TMessageType.REPLY, first.type);
+        assertEquals(1, second.seqid);
+    }
+
+    @Test
+    public void testOverloadReply() throws Exception {
+        start(1, 1, 10);
+
+        send("block", 1);
+        Thread.sleep(100);
+        send("block", 2);
+        send("sleep:0", 3);
+
+        // третий запрос не помещается ни в воркер, ни в очередь
+        final TApplicationException[] e = new TApplicationException[1];
+        final TMessage overloaded = receive(e);
+        assertEquals(3, overloaded.seqid);
+        assertEquals(TMessageType.EXCEPTION, overloaded.type);
+        assertEquals(ThriftOverloadException.OVERLOADED, e[0].getType());
+
+        processor.release.countDown();
+        assertEquals(1, receive(null).seqid);
+        assertEquals(2, receive(null).seqid);
+    }
+
+    @Test
+    public void testErrorClosesConnection() throws Exception {
+        start(1, 10, 1);
+
+        send("error", 1);
+        try {
+            final int b = socket.getInputStream().read();
+            assertEquals(-1, b);
+        } catch (IOException e) {
+            // connection reset - тоже закрыто
+        }
+
+        // воркер, в котором был Error, не мешает новым соединениям
+        socket.close();
+        socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(10000);
+        send("sleep:0", 2);
+        assertEquals(2, receive(null).seqid);
+    }
+}
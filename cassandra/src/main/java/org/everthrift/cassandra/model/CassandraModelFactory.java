@@ -42,7 +42,6 @@ import org.everthrift.cassandra.com.datastax.driver.mapping.Mapper.UpdateQuery;
 import org.everthrift.cassandra.com.datastax.driver.mapping.MappingManager;
 import org.everthrift.cassandra.com.datastax.driver.mapping.NotModifiedException;
 import org.everthrift.thrift.TFunction;
-import org.everthrift.utils.ClassUtils;
 import org.everthrift.utils.Pair;
 import org.everthrift.utils.tg.TimestampGenerator;
 import org.infinispan.Cache;
@@ -494,12 +493,13 @@ public abstract class CassandraModelFactory<PK extends Serializable, ENTITY exte
 
         for (Map.Entry<PK, Object> e : cached.entrySet()) {
             if (e.getValue() != NullValue.INSTANCE) {
-                ret.put(e.getKey(), (ENTITY) (copyOnRead ? ClassUtils.deepCopy(e.getValue()) : e.getValue()));
+                ret.put(e.getKey(), copyForRead(e.getValue()));
             } else {
                 keysToLoad.add(e.getKey());
             }
         }
 
+        final Map<PK, Long> versions = loadVersions(keysToLoad);
         final List<ListenableFuture<ENTITY>> ff = keysToLoad.parallelStream()
                                                             .map(pk -> (mapper.getAsync(extractCompaundPk(pk))))
                                                             .collect(Collectors.toList());
@@ -509,8 +509,8 @@ public abstract class CassandraModelFactory<PK extends Serializable, ENTITY exte
             for (int i = 0; i < keysToLoad.size(); i++) {
                 final PK key = keysToLoad.get(i);
                 final ENTITY value = ee.get(i);
-                getCache().put(key, value == null ? NullValue.INSTANCE : value);
-                ret.put(key, (ENTITY) (copyOnRead ? ClassUtils.deepCopy(value) : value));
+                putLoaded(key, value, versions.get(key));
+                ret.put(key, value == null ? null : copyLoaded(value));
             }
             return ret;
         });
@@ -526,14 +526,14 @@ public abstract class CassandraModelFactory<PK extends Serializable, ENTITY exte
         final Object cached = getCache().get(id);
 
         if (cached != null) {
-            return CompletableFuture.completedFuture(cached == NullValue.INSTANCE ? null : (ENTITY) cached);
+            return CompletableFuture.completedFuture(cached == NullValue.INSTANCE ? null : copyForRead(cached));
         }
 
+        final long version = loadVersion(id);
         return toCompletableFuture(mapper.getAsync(extractCompaundPk(id))).thenApply(value -> {
-            getCache().put(id, value);
+            putLoaded(id, value, version);
 
-            log.warn("Implement copyForRead??");
-            return (ENTITY) (copyOnRead ? ClassUtils.deepCopy(value) : value);
+            return value == null ? null : copyLoaded(value);
         });
     }
 
@@ -6,7 +6,9 @@ import org.everthrift.appserver.model.EntityFactory;
 import org.everthrift.appserver.model.EntityNotFoundException;
 import org.everthrift.appserver.model.OptResult;
 import org.everthrift.appserver.model.OptimisticLockModelFactoryIF;
+import org.everthrift.appserver.model.OptimisticRetryPolicy;
 import org.everthrift.appserver.model.UniqueException;
+import org.everthrift.appserver.model.UpdateCombiner;
 import org.everthrift.cassandra.DLock;
 import org.everthrift.cassandra.SequenceFactory;
 import org.everthrift.cassandra.com.datastax.driver.mapping.Mapper.Option;
@@ -14,6 +16,7 @@ import org.everthrift.cassandra.com.datastax.driver.mapping.VersionException;
 import org.everthrift.thrift.TFunction;
 import org.infinispan.Cache;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.Serializable;
 
@@ -24,6 +27,12 @@ public abstract class OptLockCassandraModelFactory<PK extends Serializable, ENTI
 
     private SequenceFactory sequenceFactory;
 
+    @NotNull
+    private OptimisticRetryPolicy retryPolicy = OptimisticRetryPolicy.DEFAULT;
+
+    @Nullable
+    private UpdateCombiner<PK, ENTITY> updateCombiner;
+
     public OptLockCassandraModelFactory(Cache<PK, ENTITY> cache, Class<ENTITY> entityClass, boolean copyOnRead) {
         super(cache, entityClass, copyOnRead);
     }
@@ -54,6 +63,17 @@ public abstract class OptLockCassandraModelFactory<PK extends Serializable, ENTI
         }
     }
 
+    public final void setRetryPolicy(@NotNull OptimisticRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Объединять конкурентные update() одного ключа в одну запись, см. {@link UpdateCombiner}
+     */
+    public final void setCombineUpdates(boolean combineUpdates) {
+        this.updateCombiner = combineUpdates ? new UpdateCombiner<>(getCacheStats()) : null;
+    }
+
     @Override
     public final void deleteEntity(@NotNull ENTITY e) {
         _delete(e);
@@ -86,6 +106,16 @@ public abstract class OptLockCassandraModelFactory<PK extends Serializable, ENTI
             throw new IllegalArgumentException("id is null");
         }
 
+        final UpdateCombiner<PK, ENTITY> combiner = updateCombiner;
+        if (combiner != null) {
+            return combiner.update(id, mutator, factory, this::_update);
+        }
+
+        return _update(id, mutator, factory);
+    }
+
+    private OptResult<ENTITY> _update(PK id, TFunction<ENTITY, Boolean> mutator,
+                                      EntityFactory<PK, ENTITY> factory) throws TException, E {
         try {
             final OptResult<ENTITY> ret = OptimisticLockModelFactoryIF.optimisticUpdate((count) -> {
 
@@ -94,7 +124,7 @@ public abstract class OptLockCassandraModelFactory<PK extends Serializable, ENTI
                 ENTITY e;
 
                 if (count == 0) {
-                    e = findEntityById(id);
+                    e = findEntityByIdForUpdate(id);
                 } else {
                     e = fetchEntityById(id);
                 }
@@ -175,7 +205,7 @@ public abstract class OptLockCassandraModelFactory<PK extends Serializable, ENTI
                         return null;
                     }
                 }
-            });
+            }, retryPolicy, getCacheStats());
 
             if (ret.isUpdated) {
                 localEventBus.postEntityEvent(updateEntityEvent(ret.beforeUpdate, ret.afterUpdate));
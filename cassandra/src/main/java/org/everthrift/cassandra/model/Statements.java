@@ -7,8 +7,8 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.Statement;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import net.javacrumbs.futureconverter.java8guava.FutureConverter;
@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 
@@ -41,8 +42,8 @@ public class Statements {
     private List<Statement> statements = Lists.newArrayList();
 
     @SuppressWarnings({"rawtypes"})
-    private Multimap<CassandraModelFactory, Object> invalidates = Multimaps.newSetMultimap(Maps.newIdentityHashMap(),
-                                                                                           () -> Sets.newHashSet());
+    private SetMultimap<CassandraModelFactory, Object> invalidates = Multimaps.newSetMultimap(Maps.newIdentityHashMap(),
+                                                                                              () -> Sets.newHashSet());
 
     private List<Runnable> callbacks = Lists.newArrayList();
 
@@ -217,9 +218,7 @@ public class Statements {
             if (t != null) {
                 log.error("Commit error", t);
             } else {
-                for (Map.Entry<CassandraModelFactory, Object> e : invalidates.entries()) {
-                    e.getKey().invalidate(e.getValue(), AbstractCachedModelFactory.InvalidateCause.UNKNOWN);
-                }
+                invalidateAll();
 
                 callbacks.forEach(Runnable::run);
             }
@@ -239,9 +238,7 @@ public class Statements {
             statements.forEach(this::execute);
         }
 
-        for (Map.Entry<CassandraModelFactory, Object> e : invalidates.entries()) {
-            e.getKey().invalidate(e.getValue(), AbstractCachedModelFactory.InvalidateCause.UNKNOWN);
-        }
+        invalidateAll();
 
         callbacks.forEach(Runnable::run);
 
@@ -250,6 +247,16 @@ public class Statements {
         callbacks.clear();
     }
 
+    /**
+     * Одна пакетная инвалидация на фабрику вместо инвалидации по каждой записи
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private void invalidateAll() {
+        for (Map.Entry<CassandraModelFactory, Set<Object>> e : Multimaps.asMap(invalidates).entrySet()) {
+            e.getKey().invalidate(e.getValue(), AbstractCachedModelFactory.InvalidateCause.UNKNOWN);
+        }
+    }
+
     public boolean isAutoCommit() {
         return autoCommit;
     }
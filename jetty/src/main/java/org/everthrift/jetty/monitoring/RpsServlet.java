@@ -25,6 +25,8 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 public class RpsServlet extends HttpServlet implements InitializingBean, DisposableBean, RpsServletIF {
 
@@ -46,15 +48,38 @@ public class RpsServlet extends HttpServlet implements InitializingBean, Disposa
 
     private Sample sample;
 
-    private long counters[] = new long[DsName.values().length];
+    /**
+     * Счетчики монотонно растут, rrd4j сам считает скорость (DsType.COUNTER)
+     */
+    private final LongAdder counters[] = new LongAdder[DsName.values().length];
 
     private DsName dsNames[] = new DsName[DsName.values().length];
 
+    /**
+     * Номер последнего sample(), страницы перерисовываются только при его изменении
+     */
+    private volatile long generation = 0;
+
+    private final AtomicReferenceArray<CachedPage> pages = new AtomicReferenceArray<>(DsName.values().length);
+
+    private static class CachedPage {
+        final long generation;
+
+        final byte[] body;
+
+        CachedPage(long generation, byte[] body) {
+            this.generation = generation;
+            this.body = body;
+        }
+    }
+
     @Resource
     private TaskScheduler myScheduler;
 
     public RpsServlet() {
-
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
     }
 
     @Override
@@ -81,7 +106,7 @@ public class RpsServlet extends HttpServlet implements InitializingBean, Disposa
         sample.setTime(System.currentTimeMillis() / 1000);
 
         for (int i = 0; i < counters.length; i++) {
-            sample.setValue(dsNames[i].dsName, counters[i]);
+            sample.setValue(dsNames[i].dsName, counters[i].sum());
         }
 
         try {
@@ -89,11 +114,13 @@ public class RpsServlet extends HttpServlet implements InitializingBean, Disposa
         } catch (Exception e) {
             log.error("Exception in sample()", e);
         }
+
+        generation++;
     }
 
     @Override
     public void incThrift(DsName dsName) {
-        counters[dsName.ordinal()]++;
+        counters[dsName.ordinal()].increment();
     }
 
     @Override
@@ -107,7 +134,7 @@ public class RpsServlet extends HttpServlet implements InitializingBean, Disposa
         }
     }
 
-    private byte[] makeGraph(DsName dsName, long startMillis, long endMillis, int width, int height) throws IOException {
+    private synchronized byte[] makeGraph(DsName dsName, long startMillis, long endMillis, int width, int height) throws IOException {
 
         final RrdGraphDef gDef = new RrdGraphDef();
         gDef.setWidth(width);
@@ -129,22 +156,22 @@ public class RpsServlet extends HttpServlet implements InitializingBean, Disposa
         return graph.getRrdGraphInfo().getBytes();
     }
 
-    @Override
-    protected void doGet(HttpServletRequest req, HttpServletResponse response) throws IOException {
-
-        response.setContentType("text/html");
-
-        final String resource = req.getParameter("ds");
-        final DsName dsName;
-        if (resource == null) {
-            dsName = DsName.THRIFT_WS;
-        } else {
-            dsName = DsName.valueOf(resource);
+    /**
+     * Страница рисуется не чаще одного раза за sample(), повторные запросы получают готовые байты
+     */
+    private byte[] getPage(DsName dsName) throws IOException {
+        final long generation = this.generation;
+        final CachedPage cached = pages.get(dsName.ordinal());
+        if (cached != null && cached.generation == generation) {
+            return cached.body;
         }
 
-        if (dsName == null) {
-            throw new RuntimeException("resource " + dsName + " not found");
-        }
+        final byte[] body = makePage(dsName);
+        pages.set(dsName.ordinal(), new CachedPage(generation, body));
+        return body;
+    }
+
+    private byte[] makePage(DsName dsName) throws IOException {
 
         long now = LongTimestamp.now();
 
@@ -177,7 +204,27 @@ public class RpsServlet extends HttpServlet implements InitializingBean, Disposa
         body.append(min + "\n<br/>\n" + hour + "\n<br/>\n" + day + "\n<br/>\n" + week + "\n<br/>\n");
         body.append("</body></html>");
 
-        final byte[] _body = body.toString().getBytes(StandardCharsets.UTF_8);
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse response) throws IOException {
+
+        response.setContentType("text/html");
+
+        final String resource = req.getParameter("ds");
+        final DsName dsName;
+        if (resource == null) {
+            dsName = DsName.THRIFT_WS;
+        } else {
+            dsName = DsName.valueOf(resource);
+        }
+
+        if (dsName == null) {
+            throw new RuntimeException("resource " + dsName + " not found");
+        }
+
+        final byte[] _body = getPage(dsName);
 
         response.setContentLength(_body.length);
         response.getOutputStream().write(_body);
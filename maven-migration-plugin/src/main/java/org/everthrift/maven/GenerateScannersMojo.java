@@ -0,0 +1,86 @@
+package org.everthrift.maven;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Goal to generate TBase scanner classes at build time, so that the application does not compile them with Javassist
+ * on the first requests.
+ * <p>
+ * The generator (org.everthrift.appserver.utils.thrift.scanner.TBaseScannerGenerator) is loaded from the project
+ * classpath, so generated classes always match the appserver version the project runs with.
+ */
+@Mojo(name = "generate-scanners", defaultPhase = LifecyclePhase.PROCESS_CLASSES, requiresDependencyResolution = ResolutionScope.COMPILE)
+public class GenerateScannersMojo extends AbstractMojo {
+
+    private static final String GENERATOR_CLASS = "org.everthrift.appserver.utils.thrift.scanner.TBaseScannerGenerator";
+
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File classesDirectory;
+
+    @Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+    private List<String> classpathElements;
+
+    /**
+     * Model packages to scan, all classes of the module if empty
+     */
+    @Parameter(property = "scanners.packages")
+    private List<String> packages = new ArrayList<>();
+
+    /**
+     * Lazy load scenarios, "default", "admin" and "json" if empty
+     */
+    @Parameter(property = "scanners.scenarios")
+    private List<String> scenarios = new ArrayList<>();
+
+    @Parameter(property = "scanners.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (skip || !classesDirectory.isDirectory()) {
+            getLog().info("Skip scanners generation");
+            return;
+        }
+
+        final ClassLoader prev = Thread.currentThread().getContextClassLoader();
+        try (URLClassLoader cl = new URLClassLoader(toUrls(classpathElements), null)) {
+            Thread.currentThread().setContextClassLoader(cl);
+
+            final Method generate = cl.loadClass(GENERATOR_CLASS).getMethod("generate", File.class, List.class, List.class);
+            final int n = (Integer) generate.invoke(null, classesDirectory, packages, scenarios);
+            getLog().info(String.format("Generated %d scanners in %s", n, classesDirectory));
+
+        } catch (ClassNotFoundException e) {
+            throw new MojoExecutionException(GENERATOR_CLASS + " not found, project must depend on everthrift appserver", e);
+        } catch (InvocationTargetException e) {
+            throw new MojoFailureException("Error while generating scanners: " + e.getCause().getMessage(), e.getCause());
+        } catch (Exception e) {
+            throw new MojoExecutionException("Error while generating scanners", e);
+        } finally {
+            Thread.currentThread().setContextClassLoader(prev);
+        }
+    }
+
+    private static URL[] toUrls(List<String> elements) throws MalformedURLException {
+        final URL[] urls = new URL[elements.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = new File(elements.get(i)).toURI().toURL();
+        }
+        return urls;
+    }
+}
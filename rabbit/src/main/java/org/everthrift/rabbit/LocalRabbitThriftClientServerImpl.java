@@ -6,8 +6,8 @@ import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.transport.TMemoryBuffer;
 import org.everthrift.appserver.controller.ThriftProcessor;
+import org.everthrift.clustering.Deadline;
 import org.everthrift.clustering.rabbit.RabbitThriftClientIF;
-import org.everthrift.clustering.thrift.NullResult;
 import org.everthrift.clustering.thrift.ServiceIfaceProxy;
 import org.everthrift.thrift.ThriftServicesDiscovery;
 import org.slf4j.Logger;
@@ -15,6 +15,8 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.PreDestroy;
 import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -29,7 +31,7 @@ public class LocalRabbitThriftClientServerImpl implements RabbitThriftClientIF {
 
     private static final Logger log = LoggerFactory.getLogger(LocalRabbitThriftClientServerImpl.class);
 
-    private final TProcessor thriftProcessor;
+    private final ThriftProcessor thriftProcessor;
 
     private final TProtocolFactory binary = new TBinaryProtocol.Factory();
 
@@ -79,10 +81,11 @@ public class LocalRabbitThriftClientServerImpl implements RabbitThriftClientIF {
                                               final TProtocol inP = binary.getProtocol(in);
                                               final TMemoryBuffer out = new TMemoryBuffer(1024);
                                               final TProtocol outP = binary.getProtocol(out);
+                                              final Map<String, Object> attributes = Deadline.inherit(new HashMap<>());
 
                                               final Future f = executor.submit(() -> {
                                                   try {
-                                                      thriftProcessor.process(inP, outP);
+                                                      thriftProcessor.process(inP, outP, attributes);
                                                   } catch (Exception e) {
                                                       log.error("Exception", e);
                                                   }
@@ -96,7 +99,7 @@ public class LocalRabbitThriftClientServerImpl implements RabbitThriftClientIF {
                                                   }
                                               }
 
-                                              throw new NullResult();
+                                              return ServiceIfaceProxy.NULL_RESULT;
                                           }));
     }
 
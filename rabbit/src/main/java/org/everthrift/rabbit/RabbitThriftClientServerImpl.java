@@ -12,7 +12,10 @@ import org.apache.thrift.transport.TMemoryInputTransport;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 import org.everthrift.appserver.controller.ThriftControllerInfo;
+import org.everthrift.appserver.controller.ThriftDeadlineExceededException;
+import org.everthrift.appserver.controller.ThriftOverloadException;
 import org.everthrift.appserver.controller.ThriftProcessor;
+import org.everthrift.clustering.MessageWrapper;
 import org.everthrift.clustering.rabbit.RabbitThriftClientIF;
 import org.everthrift.clustering.rabbit.RabbitThriftClientImpl;
 import org.everthrift.clustering.thrift.ThriftControllerDiscovery;
@@ -31,7 +34,9 @@ import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.SmartLifecycle;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class RabbitThriftClientServerImpl implements RabbitThriftClientIF, SmartLifecycle {
@@ -69,6 +74,12 @@ public class RabbitThriftClientServerImpl implements RabbitThriftClientIF, Smart
 
             final TTransport t = new TMemoryInputTransport(message.getBody());
 
+            final Map<String, Object> attributes = new HashMap<>();
+            final Object deadline = message.getMessageProperties().getHeaders().get(MessageWrapper.DEADLINE);
+            if (deadline != null) {
+                attributes.put(MessageWrapper.DEADLINE, deadline);
+            }
+
             try {
                 final Object ret = thriftProcessor.process(binaryProtocolFactory.getProtocol(t),
                                                            binaryProtocolFactory.getProtocol(new TTransport() {
@@ -94,9 +105,16 @@ public class RabbitThriftClientServerImpl implements RabbitThriftClientIF, Smart
                                                                @Override
                                                                public void write(byte[] buf, int off, int len) throws TTransportException {
                                                                }
-                                                           }), null);
+                                                           }), attributes);
 
                 if (ret instanceof TApplicationException) {
+                    final int type = ((TApplicationException) ret).getType();
+                    if (type == ThriftDeadlineExceededException.DEADLINE_EXCEEDED || type == ThriftOverloadException.OVERLOADED) {
+                        // повторная доставка не поможет: просроченный запрос просрочен навсегда, а перегрузку
+                        // requeue только усилит. Сообщение подтверждается и отбрасывается
+                        log.warn("Discarding message: {}", ((TApplicationException) ret).getMessage());
+                        return;
+                    }
                     throw new RuntimeException((TApplicationException) ret);
                 } else if (ret instanceof TException) {
                     return;
@@ -75,11 +75,19 @@ public abstract class AbstractPgSqlModelFactory<PK extends Serializable, ENTITY
 
     protected final void _invalidateJCache(@NotNull PK id, @NotNull InvalidateCause invalidateCause) {
         super.invalidate(id, invalidateCause);
+        invalidateAllKeys(invalidateCause);
+    }
+
+    /**
+     * ALL_KEYS инвалидируется тем же путем, что и сущности, поэтому при включенном окне
+     * массовая вставка сбрасывает список ключей в кластере один раз на пакет
+     */
+    private void invalidateAllKeys(@NotNull InvalidateCause invalidateCause) {
         if (getCache() != null &&
             (invalidateCause == InvalidateCause.UNKNOWN ||
                 invalidateCause == InvalidateCause.DELETE ||
                 invalidateCause == InvalidateCause.INSERT)) {
-            ((Cache)getCache()).remove(ALL_KEYS);
+            super.invalidate((PK) ALL_KEYS, invalidateCause);
         }
     }
 
@@ -89,6 +97,13 @@ public abstract class AbstractPgSqlModelFactory<PK extends Serializable, ENTITY
         getDao().evict(id);
     }
 
+    @Override
+    public final void invalidate(@NotNull Set<PK> ids, @NotNull InvalidateCause invalidateCause) {
+        super.invalidate(ids, invalidateCause);
+        invalidateAllKeys(invalidateCause);
+        ids.forEach(getDao()::evict);
+    }
+
     @Override
     public final void invalidateLocal(@NotNull PK id, @NotNull InvalidateCause invalidateCause) {
         super.invalidateLocal(id, invalidateCause);
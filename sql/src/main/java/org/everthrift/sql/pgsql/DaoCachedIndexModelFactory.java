@@ -3,6 +3,9 @@ package org.everthrift.sql.pgsql;
 import org.apache.thrift.TException;
 import org.everthrift.appserver.model.CachedIndexModelFactory;
 import org.everthrift.sql.hibernate.dao.AbstractDao;
+import org.hibernate.Criteria;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
@@ -10,8 +13,8 @@ import org.infinispan.Cache;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 public abstract class DaoCachedIndexModelFactory<K, V> extends CachedIndexModelFactory<K, V, TException> {
 
@@ -22,12 +25,30 @@ public abstract class DaoCachedIndexModelFactory<K, V> extends CachedIndexModelF
         this.dao = dao;
     }
 
+    /**
+     * Строки читаются курсором и сразу передаются в consumer, без промежуточного списка
+     */
     @Override
-    protected Collection<Object[]> loadImpl(Collection<K> keys) {
-        return dao.findByCriteria(getCriterion(keys),
-                                  Projections.projectionList().add(Projections.property(getPkProperty()))
-                                             .add(Projections.property(getIndexedProperty())),
-                                  null, Collections.singletonList(getOrder()), null, null);
+    @SuppressWarnings("unchecked")
+    protected void loadImpl(@NotNull Collection<K> keys, @NotNull BiConsumer<K, V> consumer) {
+        final AbstractDao<?, ?> d = dao;
+        d.withSession(session -> {
+            final Criteria criteria = session.createCriteria(d.getEntityClass())
+                                             .add(getCriterion(keys))
+                                             .setProjection(Projections.projectionList().add(Projections.property(getPkProperty()))
+                                                                       .add(Projections.property(getIndexedProperty())))
+                                             .addOrder(getOrder());
+
+            final ScrollableResults rows = criteria.scroll(ScrollMode.FORWARD_ONLY);
+            try {
+                while (rows.next()) {
+                    consumer.accept((K) rows.get(1), (V) rows.get(0));
+                }
+            } finally {
+                rows.close();
+            }
+            return null;
+        }, true);
     }
 
     @NotNull
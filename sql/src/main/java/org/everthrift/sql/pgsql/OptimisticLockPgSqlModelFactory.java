@@ -7,7 +7,9 @@ import org.everthrift.appserver.model.EntityFactory;
 import org.everthrift.appserver.model.EntityNotFoundException;
 import org.everthrift.appserver.model.OptResult;
 import org.everthrift.appserver.model.OptimisticLockModelFactoryIF;
+import org.everthrift.appserver.model.OptimisticRetryPolicy;
 import org.everthrift.appserver.model.UniqueException;
+import org.everthrift.appserver.model.UpdateCombiner;
 import org.everthrift.thrift.TFunction;
 import org.everthrift.utils.Pair;
 import org.everthrift.utils.tg.TimestampGenerator;
@@ -34,6 +36,12 @@ public abstract class OptimisticLockPgSqlModelFactory<PK extends Serializable, E
     @Autowired
     private TimestampGenerator timestampGenerator;
 
+    @NotNull
+    private OptimisticRetryPolicy retryPolicy = OptimisticRetryPolicy.DEFAULT;
+
+    @Nullable
+    private UpdateCombiner<PK, ENTITY> updateCombiner;
+
     /**
      * Cache need only because Hibernate does not cache rows selected by "IN"
      * statement
@@ -57,6 +65,16 @@ public abstract class OptimisticLockPgSqlModelFactory<PK extends Serializable, E
         }
     }
 
+    public final void setRetryPolicy(@NotNull OptimisticRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Объединять конкурентные update() одного ключа в одну транзакцию, см. {@link UpdateCombiner}
+     */
+    public final void setCombineUpdates(boolean combineUpdates) {
+        this.updateCombiner = combineUpdates ? new UpdateCombiner<>(getCacheStats()) : null;
+    }
 
     @Override
     @NotNull
@@ -87,6 +105,17 @@ public abstract class OptimisticLockPgSqlModelFactory<PK extends Serializable, E
     @Override
     public final OptResult<ENTITY> update(@NotNull PK id, @NotNull TFunction<ENTITY, Boolean> mutator,
                                           final EntityFactory<PK, ENTITY> factory) throws TException, E {
+        final UpdateCombiner<PK, ENTITY> combiner = updateCombiner;
+        if (combiner != null) {
+            return combiner.update(id, mutator, factory, this::_update);
+        }
+
+        return _update(id, mutator, factory);
+    }
+
+    @NotNull
+    private OptResult<ENTITY> _update(@NotNull PK id, @NotNull TFunction<ENTITY, Boolean> mutator,
+                                      final EntityFactory<PK, ENTITY> factory) throws TException, E {
         try {
             return optimisticUpdate(id, mutator, factory);
         } catch (EntityNotFoundException e) {
@@ -134,7 +163,7 @@ public abstract class OptimisticLockPgSqlModelFactory<PK extends Serializable, E
                     log.debug("update fails id={}, let's try one more time? {}", id, e.getMessage());
                     return null;
                 }
-            });
+            }, retryPolicy, getCacheStats());
 
             _invalidateJCache(id, InvalidateCause.DELETE);
 
@@ -231,7 +260,7 @@ public abstract class OptimisticLockPgSqlModelFactory<PK extends Serializable, E
                 log.debug("update fails id={}, let's try one more time? {}", id, e.getMessage());
                 return null;
             }
-        });
+        }, retryPolicy, getCacheStats());
 
         if (ret.isUpdated) {
             _invalidateJCache(id, ret.isInserted ? InvalidateCause.INSERT : InvalidateCause.UPDATE);
@@ -96,6 +96,13 @@ public class BaseThriftClient implements AutoCloseable {
         protocol.getTransport().open();
     }
 
+    /**
+     * Клиент, допускающий много одновременных вызовов на одном TCP-соединении
+     */
+    public static PipelinedThriftClient pipelinedSocketClient(HostPort hostPort, long timeoutMs) throws TTransportException {
+        return new PipelinedThriftClient(hostPort, timeoutMs);
+    }
+
     public static BaseThriftClient zlibWsClient(String url, TProcessor processor) throws TTransportException, URISyntaxException {
         return new BaseThriftClient(url, processor);
     }
@@ -0,0 +1,185 @@
+package org.everthrift.thriftclient;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.everthrift.thrift.ThriftCallFuture;
+import org.everthrift.thrift.ThriftServicesDiscovery;
+import org.everthrift.utils.AsyncRegister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Клиент TFramedTransport поверх одного сокета, допускающий много одновременных вызовов.
+ * <p>
+ * Запросы пишутся в сокет сразу, ответы читаются отдельным потоком и сопоставляются с вызовами по seqid,
+ * поэтому могут приходить в любом порядке. Для параллельной обработки на стороне сервера нужен
+ * NioThriftServer с thrift.nio.maxInFlight > 1.
+ */
+public class PipelinedThriftClient implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PipelinedThriftClient.class);
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r);
+        t.setName("PipelinedThriftClientTimer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Socket socket;
+
+    private final DataOutputStream out;
+
+    private final DataInputStream in;
+
+    private final TProtocolFactory protocolFactory;
+
+    private final AsyncRegister<ThriftCallFuture> async = new AsyncRegister<>(scheduler);
+
+    private final long timeoutMs;
+
+    private final int maxFrameSize;
+
+    private final Thread reader;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param hostPort
+     * @param timeoutMs таймаут одного вызова
+     */
+    public PipelinedThriftClient(BaseThriftClient.HostPort hostPort, long timeoutMs) throws TTransportException {
+        this(hostPort, timeoutMs, new TBinaryProtocol.Factory(), 16384000);
+    }
+
+    public PipelinedThriftClient(BaseThriftClient.HostPort hostPort, long timeoutMs, TProtocolFactory protocolFactory,
+                                 int maxFrameSize) throws TTransportException {
+        this.protocolFactory = protocolFactory;
+        this.timeoutMs = timeoutMs;
+        this.maxFrameSize = maxFrameSize;
+
+        try {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(hostPort.addr, hostPort.port));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        } catch (IOException e) {
+            throw new TTransportException(TTransportException.NOT_OPEN, e);
+        }
+
+        reader = new Thread(this::readLoop);
+        reader.setName("PipelinedThriftClient-" + hostPort.descr);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> call(ThriftServicesDiscovery.ThriftMethodEntry thriftMethodEntry, TBase args) {
+        return call(new ThriftCallFuture<T>(thriftMethodEntry, args));
+    }
+
+    /**
+     * @return тот же ThriftCallFuture, который будет завершен ответом сервера, исключением или TIMED_OUT
+     */
+    public <T> CompletableFuture<T> call(ThriftCallFuture<T> ii) {
+
+        if (closed) {
+            ii.completeExceptionally(new TTransportException(TTransportException.NOT_OPEN, "closed"));
+            return ii;
+        }
+
+        final int seqId = async.nextSeqId();
+        final TMemoryBuffer buf = ii.serializeCall(seqId, protocolFactory);
+
+        async.put(seqId, ii, timeoutMs);
+
+        try {
+            synchronized (out) {
+                out.writeInt(buf.length());
+                out.write(buf.getArray(), 0, buf.length());
+                out.flush();
+            }
+        } catch (IOException e) {
+            final ThriftCallFuture f = async.pop(seqId);
+            if (f != null) {
+                f.completeExceptionally(new TTransportException(TTransportException.UNKNOWN, e));
+            }
+            close();
+        }
+
+        return ii;
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                final int size = in.readInt();
+                if (size <= 0 || size > maxFrameSize) {
+                    throw new IOException("Invalid frame size: " + size);
+                }
+
+                final byte[] data = new byte[size];
+                in.readFully(data);
+
+                final TMessage msg = protocolFactory.getProtocol(new TMemoryInputTransport(data)).readMessageBegin();
+                final ThriftCallFuture ii = async.pop(msg.seqid);
+
+                if (ii == null) {
+                    log.warn("Callback for seqId={} not found", msg.seqid);
+                    continue;
+                }
+
+                try {
+                    ii.deserializeReply(data, protocolFactory);
+                } catch (TException e) {
+                    // future уже завершен этим исключением
+                }
+            }
+        } catch (IOException | TException e) {
+            if (!closed) {
+                log.warn("Connection lost: {}", e.toString());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+
+        for (ThriftCallFuture ii : async.popAll()) {
+            ii.completeExceptionally(new TTransportException(TTransportException.NOT_OPEN, "connection closed"));
+        }
+    }
+}
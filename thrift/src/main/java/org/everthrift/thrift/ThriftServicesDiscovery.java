@@ -23,7 +23,9 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -263,6 +265,13 @@ public class ThriftServicesDiscovery {
         return thriftMethodEntryMap.get(fullMethodName);
     }
 
+    /**
+     * @return все найденные методы, без дублей по алиасам имени сервиса
+     */
+    public Collection<ThriftMethodEntry> getMethodEntries() {
+        return new HashSet<>(thriftMethodEntryMap.values());
+    }
+
     public ThriftMethodEntry getByMethod(Method method) {
         return thriftMethodEntryMap.get(method.getDeclaringClass().getCanonicalName() + ":" + method.getName());
     }
@@ -1,52 +1,70 @@
 package org.everthrift.utils;
 
 import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Статистика времени выполнения без блокировок: счетчики на LongAdder (striped) и гистограмма с логарифмическими
+ * интервалами (8 интервалов на каждую степень двойки, погрешность перцентилей до 12.5%).
+ * <p>
+ * update() можно вызывать из любого числа потоков. Для чтения согласованных значений нужно снять копию
+ * через {@link #ExecutionStats(ExecutionStats)}.
+ *
  * @author efreet (Amosov Evgeniy)
  */
 public class ExecutionStats {
 
-    /**
-     * Колчиество выполнений
-     */
-    private long count;
+    private static final int SUB_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
 
     /**
-     * Суммарное время выполнения
+     * Значения меньше LINEAR попадают каждое в свой интервал
      */
-    private long summaryTime;
+    private static final int LINEAR = SUB_BUCKETS * 2;
+
+    private static final int MAX_EXP = 40;
+
+    private static final int BUCKETS = LINEAR + (MAX_EXP - SUB_BITS) * SUB_BUCKETS;
 
     /**
-     * сумма квадратов времен выполнения
+     * Колчиество выполнений
      */
-    private long sqSummaryTime;
+    private final LongAdder count = new LongAdder();
 
     /**
-     * колличество попадания велечины в интервал Avr-S Avr+S
+     * Суммарное время выполнения
      */
-    private long pS;
+    private final LongAdder summaryTime = new LongAdder();
 
     /**
-     * колличество попадания велечины в интервал Avr-S Avr+S
+     * сумма квадратов времен выполнения
      */
-    private long p2S;
+    private final LongAdder sqSummaryTime = new LongAdder();
+
+    private final LongAccumulator maxTime = new LongAccumulator(Math::max, 0);
 
+    private final LongAdder[] histogram = new LongAdder[BUCKETS];
 
     public ExecutionStats() {
-        count = 0;
-        summaryTime = 0;
-        sqSummaryTime = 0;
-        pS = 0;
-        p2S = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = new LongAdder();
+        }
     }
 
+    /**
+     * Снимок значений old
+     */
     public ExecutionStats(ExecutionStats old) {
-        count = old.count;
-        summaryTime = old.summaryTime;
-        sqSummaryTime = old.sqSummaryTime;
-        pS = old.pS;
-        p2S = old.p2S;
+        this();
+        count.add(old.count.sum());
+        summaryTime.add(old.summaryTime.sum());
+        sqSummaryTime.add(old.sqSummaryTime.sum());
+        maxTime.accumulate(old.maxTime.get());
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i].add(old.histogram[i].sum());
+        }
     }
 
     public ExecutionStats(ExecutionStats stats, long time) {
@@ -54,17 +72,66 @@ public class ExecutionStats {
         this.update(time);
     }
 
-    synchronized public void update(long time) {
-        count = count + 1;
-        summaryTime = summaryTime + time;
-        sqSummaryTime = sqSummaryTime + time * time;
+    /**
+     * Обновления, идущие параллельно с reset(), могут быть учтены частично
+     */
+    public void reset() {
+        count.reset();
+        summaryTime.reset();
+        sqSummaryTime.reset();
+        maxTime.reset();
+        for (LongAdder b : histogram) {
+            b.reset();
+        }
+    }
 
-        if (Math.abs(time - getAverageTime()) <= (long) getS()) {
-            pS++;
-        } else if (Math.abs(time - getAverageTime()) <= (long) getS() * 2) {
-            p2S++;
+    public void update(long time) {
+        if (time < 0) {
+            time = 0;
         }
 
+        count.increment();
+        summaryTime.add(time);
+        sqSummaryTime.add(time * time);
+        maxTime.accumulate(time);
+        histogram[bucket(time)].increment();
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        if (exp > MAX_EXP) {
+            return BUCKETS - 1;
+        }
+
+        final int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exp - SUB_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return наибольшее значение, попадающее в интервал
+     */
+    static long bucketUpperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+
+        final int k = bucket - LINEAR;
+        final int exp = k / SUB_BUCKETS + SUB_BITS + 1;
+        final long lower = (1L << exp) | ((long) (k % SUB_BUCKETS) << (exp - SUB_BITS));
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    private static long bucketMiddle(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+
+        final int exp = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+        return bucketUpperBound(bucket) - (1L << (exp - SUB_BITS - 1));
     }
 
     /**
@@ -73,7 +140,7 @@ public class ExecutionStats {
      * @return количество выполнений
      */
     public long getCount() {
-        return count;
+        return count.sum();
     }
 
     /**
@@ -82,7 +149,7 @@ public class ExecutionStats {
      * @return суммарное время выполнения
      */
     public long getSummaryTime() {
-        return summaryTime;
+        return summaryTime.sum();
     }
 
     /**
@@ -91,42 +158,121 @@ public class ExecutionStats {
      * @return среднее время выполнения
      */
     public long getAverageTime() {
+        final long count = getCount();
         if (count == 0) {
             return 0;
         }
 
-        return summaryTime / count;
+        return getSummaryTime() / count;
     }
 
     public double getDispertion() {
+        final long count = getCount();
         if (count == 0) {
             return 0;
         }
 
-        return (double) sqSummaryTime / (double) count - Math.pow((double) summaryTime / (double) count, 2);
+        return (double) sqSummaryTime.sum() / (double) count - Math.pow((double) getSummaryTime() / (double) count, 2);
     }
 
     public double getS() {
+        final long count = getCount();
         if (count < 2) {
             return 0;
         }
 
-        return Math.sqrt(getDispertion() * (double) count / ((double) count - 1.0));
+        return Math.sqrt(Math.max(0, getDispertion()) * (double) count / ((double) count - 1.0));
     }
 
-    public long getPs1() {
-        if (count == 0) {
+    public long getMax() {
+        return maxTime.get();
+    }
+
+    /**
+     * @param q доля от 0 до 1, например 0.99
+     * @return оценка сверху для q-перцентиля, не больше {@link #getMax()}
+     */
+    public long getPercentile(double q) {
+        final long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = histogram[i].sum();
+            total += buckets[i];
+        }
+
+        if (total == 0) {
             return 0;
         }
-        return pS * 100 / count;
+
+        final long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
     }
 
-    public long getPs2() {
+    public long getP50() {
+        return getPercentile(0.5);
+    }
+
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    public long getP999() {
+        return getPercentile(0.999);
+    }
+
+    /**
+     * @return процент значений в интервале [Avr-k*S; Avr+k*S], оценивается по гистограмме
+     */
+    private long getPsK(int k) {
+        final long count = getCount();
         if (count == 0) {
             return 0;
         }
 
-        return p2S * 100 / count;
+        final long avr = getAverageTime();
+        final double s = getS() * k;
+
+        long in = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (Math.abs(bucketMiddle(i) - avr) <= s) {
+                in += histogram[i].sum();
+            }
+        }
+        return Math.min(100, in * 100 / count);
+    }
+
+    /**
+     * процент попадания в интервал [Avr-S; Avr+S]
+     */
+    public long getPs1() {
+        return getPsK(1);
+    }
+
+    /**
+     * процент попадания в интервал (Avr-2S; Avr-S) и (Avr+S; Avr+2S)
+     */
+    public long getPs2() {
+        final long ps1 = getPs1();
+        return Math.max(0, getPsK(2) - ps1);
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutionStats{" +
+            "count=" + getCount() +
+            ", avr=" + getAverageTime() +
+            ", p50=" + getP50() +
+            ", p99=" + getP99() +
+            ", p999=" + getP999() +
+            ", max=" + getMax() +
+            '}';
     }
 
     public static String getLogString(List<Pair<String, ExecutionStats>> list) {
@@ -140,18 +286,23 @@ public class ExecutionStats {
 
         final StringBuilder wr = new StringBuilder();
 
-        wr.append(String.format("%10s, %2s, %8s, %2s, %6s, %9s, %3s, %3s, \"%s\"\n", "sum mcs", "%%", "count", "%%", "avr mcs", "S", "pS1", "pS2", "title"));
+        wr.append(String.format("%10s, %2s, %8s, %2s, %6s, %9s, %3s, %3s, %7s, %7s, %7s, %7s, \"%s\"\n",
+                                "sum mcs", "%%", "count", "%%", "avr mcs", "S", "pS1", "pS2", "p50", "p99", "p999", "max", "title"));
 
         for (Pair<String, ExecutionStats> p : list) {
-            wr.append(String.format("%10d, %2d, %8d, %2d, %7d, %9.2f, %3d, %3d, \"%s\"\n",
+            wr.append(String.format("%10d, %2d, %8d, %2d, %7d, %9.2f, %3d, %3d, %7d, %7d, %7d, %7d, \"%s\"\n",
                                     p.second.getSummaryTime(), //всего времени в mcs
-                                    p.second.getSummaryTime() * 100 / sumTime, //время в процентах от общего времени, затраченного на выполнение всех запросов
+                                    sumTime > 0 ? p.second.getSummaryTime() * 100 / sumTime : 0, //время в процентах от общего времени, затраченного на выполнение всех запросов
                                     p.second.getCount(), //кол-во запросов
-                                    p.second.getCount() * 100 / sumCount, //процент от общего кол-ва запросов
+                                    sumCount > 0 ? p.second.getCount() * 100 / sumCount : 0, //процент от общего кол-ва запросов
                                     p.second.getAverageTime(), //среднее время выполенния запроса
                                     p.second.getS(), //стандартное отклонение
                                     p.second.getPs1(), //процент попадания в интервал [-S;+S]
                                     p.second.getPs2(), //процент попадания в интервал -[2S;+2S]
+                                    p.second.getP50(), //медиана, mcs
+                                    p.second.getP99(),
+                                    p.second.getP999(),
+                                    p.second.getMax(), //максимальное время выполнения
                                     p.first));
         }
 
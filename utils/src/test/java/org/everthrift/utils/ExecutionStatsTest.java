@@ -0,0 +1,121 @@
+package org.everthrift.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExecutionStatsTest {
+
+    @Test
+    public void testLinearBuckets() {
+        for (int v = 0; v < 16; v++) {
+            assertEquals(v, ExecutionStats.bucket(v));
+            assertEquals(v, ExecutionStats.bucketUpperBound(v));
+        }
+    }
+
+    @Test
+    public void testBucketBounds() {
+        int prev = 0;
+        for (long v = 1; v < (1L << 41); v = v < 100000 ? v + 1 : v + v / 1000) {
+            final int b = ExecutionStats.bucket(v);
+            assertTrue("monotonic at " + v, b >= prev);
+            assertTrue("upper bound at " + v, ExecutionStats.bucketUpperBound(b) >= v);
+            assertTrue("lower bound at " + v, ExecutionStats.bucketUpperBound(b - 1) < v);
+            assertTrue("relative error at " + v, ExecutionStats.bucketUpperBound(b) - v <= v / 8);
+            prev = b;
+        }
+    }
+
+    @Test
+    public void testOverflowBucket() {
+        final int last = ExecutionStats.bucket((1L << 41) - 1);
+        assertEquals(last, ExecutionStats.bucket(1L << 41));
+        assertEquals(last, ExecutionStats.bucket(Long.MAX_VALUE));
+        assertEquals((1L << 41) - 1, ExecutionStats.bucketUpperBound(last));
+    }
+
+    @Test
+    public void testPercentiles() {
+        final ExecutionStats stats = new ExecutionStats();
+        assertEquals(0, stats.getP50());
+
+        for (int i = 1; i <= 100; i++) {
+            stats.update(i);
+        }
+
+        assertEquals(100, stats.getCount());
+        assertEquals(100, stats.getMax());
+        assertEquals(50, stats.getAverageTime());
+
+        assertTrue(stats.getP50() >= 50 && stats.getP50() <= 50 + 50 / 8);
+        assertTrue(stats.getP99() >= 99 && stats.getP99() <= 100);
+        assertEquals(100, stats.getPercentile(1.0));
+        assertEquals(1, stats.getPercentile(0));
+    }
+
+    @Test
+    public void testNegativeTime() {
+        final ExecutionStats stats = new ExecutionStats();
+        stats.update(-5);
+        assertEquals(1, stats.getCount());
+        assertEquals(0, stats.getMax());
+        assertEquals(0, stats.getP99());
+    }
+
+    @Test
+    public void testSnapshotAndReset() {
+        final ExecutionStats stats = new ExecutionStats();
+        for (int i = 0; i < 1000; i++) {
+            stats.update(i * 10);
+        }
+
+        final ExecutionStats copy = new ExecutionStats(stats);
+        stats.reset();
+
+        assertEquals(0, stats.getCount());
+        assertEquals(0, stats.getP99());
+        assertEquals(1000, copy.getCount());
+        assertEquals(9990, copy.getMax());
+        assertTrue(copy.getP999() >= 9980 && copy.getP999() <= 9990);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        final ExecutionStats stats = new ExecutionStats();
+        final int nThreads = 4;
+        final int nUpdates = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            final Thread th = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 1; i <= nUpdates; i++) {
+                    stats.update(i);
+                }
+            });
+            th.start();
+            threads.add(th);
+        }
+
+        start.countDown();
+        for (Thread th : threads) {
+            th.join();
+        }
+
+        assertEquals(nThreads * nUpdates, stats.getCount());
+        assertEquals((long) nThreads * nUpdates * (nUpdates + 1) / 2, stats.getSummaryTime());
+        assertEquals(nUpdates, stats.getMax());
+        assertEquals(nUpdates, stats.getPercentile(1.0));
+    }
+}